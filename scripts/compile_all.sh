@@ -6,25 +6,44 @@ mkdir -p target/classes
 
 javac -cp ".;src/main/lib/jcommon-1.0.23.jar;src/main/lib/jfreechart-1.0.19.jar" \
     -d target/classes \
+    src/main/ir/BitmapTable.java \
+    src/main/ir/CompressedHashedIndex.java \
+    src/main/ir/DocBitmap.java \
+    src/main/ir/DocumentInverter.java \
     src/main/ir/Engine.java \
     src/main/ir/HashedIndex.java \
     src/main/ir/HITSRanker.java \
     src/main/ir/Index.java \
     src/main/ir/Indexer.java \
+    src/main/ir/IndexingPipeline.java \
     src/main/ir/KGramIndex.java \
     src/main/ir/KGramPostingsEntry.java \
+    src/main/ir/MappedFile.java \
     src/main/ir/NormalizationType.java \
+    src/main/ir/PerfectHash.java \
     src/main/ir/PersistentHashedIndex.java \
+    src/main/ir/PostingsCodec.java \
+    src/main/ir/PostingsCursor.java \
     src/main/ir/PostingsEntry.java \
     src/main/ir/PostingsList.java \
+    src/main/ir/PostingsTable.java \
     src/main/ir/Query.java \
     src/main/ir/QueryType.java \
     src/main/ir/RankingType.java \
     src/main/ir/Searcher.java \
     src/main/ir/SearchGUI.java \
+    src/main/ir/SortedTermDictionary.java \
     src/main/ir/SpellChecker.java \
     src/main/ir/SpellingOptionsDialog.java \
+    src/main/ir/TermDictionary.java \
+    src/main/ir/TieredIndex.java \
+    src/main/ir/TokenPatterns.java \
     src/main/ir/Tokenizer.java \
+    src/tests/Benchmark.java \
+    src/tests/DictionaryBenchmark.java \
+    src/tests/PostingsBenchmark.java \
+    src/tests/SearchTest.java \
+    src/tests/TokenBenchmark.java \
     src/tests/TokenTest.java \
     src/main/ir/pagerank/PageRank.java \
     src/main/ir/pagerank/PageRankPlotting.java
\ No newline at end of file
@@ -0,0 +1,3 @@
+cd ..\
+
+java -cp target\classes ir.PostingsBenchmark
@@ -0,0 +1,3 @@
+#!/bin/sh
+cd ../
+java -cp target/classes ir.SearchTest
@@ -0,0 +1,3 @@
+cd ..\
+
+java -cp target\classes ir.TokenBenchmark -f token_test.txt -p patterns.txt -cf
@@ -0,0 +1,69 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ *   The docID bitmaps of the common terms of an index, by term. A term
+ *   gets a bitmap if it occurs in at least 1/@code{DocBitmap.DENSITY} of
+ *   the documents.
+ *
+ *   The bitmaps are not stored in the index files. The bitmap of a term is
+ *   built by decoding its postings the first time it is asked for, and kept
+ *   until the index changes. An index read from disk thus pays one decode
+ *   of the postings of each common term that is searched for. The terms
+ *   found to be too rare are remembered as well, so that their document
+ *   frequency is only read once.
+ *
+ *   The bitmaps are kept by term rather than by term ID, since the terms
+ *   of an index that is read from disk have no IDs in the shared
+ *   dictionary.
+ *
+ *   Searches may ask for bitmaps from several threads. Two of them may
+ *   build the same bitmap, and the first one to be stored is kept. The
+ *   index must not change while it is searched.
+ */
+class BitmapTable {
+
+    /** The most terms that are remembered; beyond this, the table starts over. */
+    static final int MAX_TERMS = 1 << 16;
+
+    /** Stands for the terms that are too rare to get a bitmap. */
+    private static final DocBitmap RARE = new DocBitmap();
+
+    /** The bitmaps built so far, and the rare terms, by term. */
+    private final ConcurrentHashMap<String,DocBitmap> bitmaps = new ConcurrentHashMap<>();
+
+
+    /** Returns the bitmap of a term of the index, or null if the term is not common enough. */
+    DocBitmap get( Index index, String token ) {
+        DocBitmap bitmap = bitmaps.get( token );
+        if ( bitmap == null ) {
+            int docFreq = index.getDocFreq( token );
+            if ( docFreq == 0 || (long) docFreq * DocBitmap.DENSITY < Index.docLengths.size() ) {
+                bitmap = RARE;
+            } else {
+                bitmap = DocBitmap.of( index.getCursor( token, false ));
+            }
+            if ( bitmaps.size() >= MAX_TERMS ) {
+                bitmaps.clear();
+            }
+            DocBitmap stored = bitmaps.putIfAbsent( token, bitmap );
+            if ( stored != null ) {
+                bitmap = stored;
+            }
+        }
+        return bitmap == RARE ? null : bitmap;
+    }
+
+
+    /** Removes all bitmaps, since the postings they were built from have changed. */
+    void clear() {
+        bitmaps.clear();
+    }
+}
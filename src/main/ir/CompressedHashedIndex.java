@@ -0,0 +1,305 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+
+/**
+ *   Implements an inverted index in main memory, in which the postings of
+ *   each term are kept compressed in two byte arrays, in the format of the
+ *   streams of the data file of the persistent index (see
+ *   @code{PostingsCodec}): docID gaps and counts in one, position gaps in
+ *   the other, as variable-byte codes. This takes a fraction of the heap of
+ *   a HashedIndex, whose postings are objects.
+ *
+ *   The postings of a term are decoded into a PostingsList when they are
+ *   asked for, so the index can be searched like any other index.
+ *   Postings are appended to the byte arrays of a term as documents are
+ *   inserted; the arrays are trimmed to their exact size by cleanup().
+ *
+ *   For every complete block of @code{PostingsCodec.BLOCK_SIZE} postings
+ *   of a term, its last docID and lengths are kept in a skip table, so
+ *   that a cursor over the postings can jump over whole blocks.
+ */
+public class CompressedHashedIndex implements Index {
+
+    /** The encoded docID gaps and counts, by term ID. */
+    private byte[][] data = new byte[1024][];
+
+    /** Number of bytes used in the array of each term. */
+    private int[] lengths = new int[1024];
+
+    /** The encoded position gaps, by term ID. */
+    private byte[][] positions = new byte[1024][];
+
+    /** Number of bytes used in the position array of each term. */
+    private int[] positionLengths = new int[1024];
+
+    /** Number of postings of each term. */
+    private int[] sizes = new int[1024];
+
+    /** The last docID of each term, from which the next docID gap is taken. */
+    private int[] lastDocIDs = new int[1024];
+
+    /**
+     *  The skip table of each term: the last docID and the lengths in the
+     *  two arrays of each complete block, or null if the term has no
+     *  complete block.
+     */
+    private int[][] skips = new int[1024][];
+
+    /** The offsets of the last incomplete block of each term in the two arrays. */
+    private int[] blockStarts = new int[1024], positionBlockStarts = new int[1024];
+
+    /**
+     *  The posting of each term that is still being built by the insertion
+     *  of single tokens, and has not been encoded yet.
+     */
+    private PostingsEntry[] open = new PostingsEntry[1024];
+
+    /** The IDs of the terms in the index, in order of insertion. */
+    private int[] termIDs = new int[256];
+
+    /** Number of terms in the index. */
+    private int terms = 0;
+
+    /** The bitmaps of the common terms, built when they are first asked for. */
+    private final BitmapTable bitmaps = new BitmapTable();
+
+
+    /**
+     *  Inserts this token in the index.
+     */
+    public void insert( String token, int docID, int offset ) {
+        int termID = dictionary.add( token );
+        ensureTerm( termID );
+        bitmaps.clear();
+        PostingsEntry entry = open[termID];
+        if (entry != null && entry.docID == docID) {
+            entry.addPosition( offset );
+            return;
+        }
+        seal( termID );
+        open[termID] = new PostingsEntry( docID, offset );
+    }
+
+
+    /**
+     *  Appends the posting of a document, built by a DocumentInverter.
+     */
+    public void insert( int termID, PostingsEntry entry ) {
+        ensureTerm( termID );
+        bitmaps.clear();
+        seal( termID );
+        append( termID, entry );
+    }
+
+
+    /**
+     *  Appends the postings of a term, e.g. from an index shard.
+     */
+    public void merge( int termID, PostingsList postings ) {
+        ensureTerm( termID );
+        bitmaps.clear();
+        seal( termID );
+        for (int i = 0; i < postings.size(); i++) {
+            append( termID, postings.get( i ));
+        }
+    }
+
+
+    /**
+     *  Visits every term in the index together with its postings list,
+     *  which is decoded for the visit.
+     */
+    public void forEachTerm( BiConsumer<String,PostingsList> visitor ) {
+        for (int i = 0; i < terms; i++) {
+            int termID = termIDs[i];
+            visitor.accept( dictionary.term( termID ), decode( termID ));
+        }
+    }
+
+
+    /**
+     *  Returns the postings for a specific term, or null
+     *  if the term is not in the index.
+     */
+    public PostingsList getPostings( String token ) {
+        int termID = dictionary.lookup( token );
+        if (termID < 0 || termID >= data.length || data[termID] == null) {
+            return null;
+        }
+        return decode( termID );
+    }
+
+
+    /**
+     *  Returns a cursor over the postings for a specific term, which
+     *  decodes them lazily, or null if the term is not in the index.
+     */
+    public PostingsCursor getCursor( String token ) {
+        return getCursor( token, true );
+    }
+
+
+    /**
+     *  Returns a cursor over the postings for a specific term, which
+     *  decodes them lazily, or null if the term is not in the index.
+     *  Without positions, the position array is not read.
+     */
+    public PostingsCursor getCursor( String token, boolean positions ) {
+        int termID = dictionary.lookup( token );
+        if (termID < 0 || termID >= data.length || data[termID] == null) {
+            return null;
+        }
+        if (open[termID] != null) {
+            return decode( termID ).cursor();
+        }
+        ByteBuffer docs = ByteBuffer.wrap( data[termID], 0, lengths[termID] );
+        ByteBuffer positionStream = positions
+                ? ByteBuffer.wrap( this.positions[termID], 0, positionLengths[termID] ) : null;
+        int blocks = sizes[termID] / PostingsCodec.BLOCK_SIZE;
+        return PostingsCodec.cursor( docs, positionStream, sizes[termID], skips[termID], blocks );
+    }
+
+
+    /**
+     *  Returns a bitmap of the documents that contain a term, if it occurs
+     *  in a large fraction of the documents, or null.
+     */
+    public DocBitmap getBitmap( String token ) {
+        return bitmaps.get( this, token );
+    }
+
+
+    /**
+     *  Returns the number of documents that contain a term, without
+     *  decoding its postings.
+     */
+    public int getDocFreq( String token ) {
+        int termID = dictionary.lookup( token );
+        if (termID < 0 || termID >= data.length || data[termID] == null) {
+            return 0;
+        }
+        return sizes[termID] + (open[termID] != null ? 1 : 0);
+    }
+
+
+    /**
+     *  Encodes the postings still being built, and trims the arrays of
+     *  encoded postings to their exact size.
+     */
+    public void cleanup() {
+        bitmaps.clear();
+        long bytes = 0L, postings = 0L;
+        for (int i = 0; i < terms; i++) {
+            int termID = termIDs[i];
+            seal( termID );
+            data[termID] = Arrays.copyOf( data[termID], lengths[termID] );
+            positions[termID] = Arrays.copyOf( positions[termID], positionLengths[termID] );
+            bytes += lengths[termID] + positionLengths[termID];
+            postings += sizes[termID];
+        }
+        System.out.println( terms + " unique words, " + postings + " postings in "
+                + bytes + " bytes of compressed postings" );
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /** Makes room for a term, and adds it to the index if it is new. */
+    private void ensureTerm( int termID ) {
+        if (termID >= data.length) {
+            int capacity = Math.max( 2 * data.length, termID + 1 );
+            data = Arrays.copyOf( data, capacity );
+            lengths = Arrays.copyOf( lengths, capacity );
+            positions = Arrays.copyOf( positions, capacity );
+            positionLengths = Arrays.copyOf( positionLengths, capacity );
+            sizes = Arrays.copyOf( sizes, capacity );
+            lastDocIDs = Arrays.copyOf( lastDocIDs, capacity );
+            skips = Arrays.copyOf( skips, capacity );
+            blockStarts = Arrays.copyOf( blockStarts, capacity );
+            positionBlockStarts = Arrays.copyOf( positionBlockStarts, capacity );
+            open = Arrays.copyOf( open, capacity );
+        }
+        if (data[termID] == null) {
+            if (terms == termIDs.length) {
+                termIDs = Arrays.copyOf( termIDs, 2 * terms );
+            }
+            termIDs[terms++] = termID;
+            data[termID] = new byte[16];
+            positions[termID] = new byte[16];
+        }
+    }
+
+
+    /** Encodes the posting of a term that was built token by token, if any. */
+    private void seal( int termID ) {
+        if (termID < open.length && open[termID] != null) {
+            PostingsEntry entry = open[termID];
+            open[termID] = null;
+            append( termID, entry );
+        }
+    }
+
+
+    /** Encodes a posting at the end of the postings of a term. */
+    private void append( int termID, PostingsEntry entry ) {
+        if (sizes[termID] > 0 && entry.docID <= lastDocIDs[termID]) {
+            throw new IllegalArgumentException( "Postings must be appended in docID order." );
+        }
+        int needed = lengths[termID] + 2 * PostingsCodec.MAX_VBYTE_LENGTH;
+        if (needed > data[termID].length) {
+            data[termID] = Arrays.copyOf( data[termID], Math.max( needed, 2 * data[termID].length ));
+        }
+        needed = positionLengths[termID] + PostingsCodec.MAX_VBYTE_LENGTH * entry.getWordCount();
+        if (needed > positions[termID].length) {
+            positions[termID] = Arrays.copyOf( positions[termID], Math.max( needed, 2 * positions[termID].length ));
+        }
+        ByteBuffer docs = ByteBuffer.wrap( data[termID] );
+        docs.position( lengths[termID] );
+        ByteBuffer positionStream = ByteBuffer.wrap( positions[termID] );
+        positionStream.position( positionLengths[termID] );
+        PostingsCodec.encode( entry, sizes[termID] > 0 ? lastDocIDs[termID] : 0, docs, positionStream );
+        lengths[termID] = docs.position();
+        positionLengths[termID] = positionStream.position();
+        lastDocIDs[termID] = entry.docID;
+        sizes[termID]++;
+        if (sizes[termID] % PostingsCodec.BLOCK_SIZE == 0) {
+            int block = sizes[termID] / PostingsCodec.BLOCK_SIZE - 1;
+            int entries = PostingsCodec.SKIP_ENTRIES;
+            if (skips[termID] == null) {
+                skips[termID] = new int[4 * entries];
+            } else if (entries * block == skips[termID].length) {
+                skips[termID] = Arrays.copyOf( skips[termID], 2 * skips[termID].length );
+            }
+            skips[termID][entries * block] = entry.docID;
+            skips[termID][entries * block + 1] = lengths[termID] - blockStarts[termID];
+            skips[termID][entries * block + 2] = positionLengths[termID] - positionBlockStarts[termID];
+            blockStarts[termID] = lengths[termID];
+            positionBlockStarts[termID] = positionLengths[termID];
+        }
+    }
+
+
+    /** Decodes the postings of a term, including a posting still being built. */
+    private PostingsList decode( int termID ) {
+        ByteBuffer docs = ByteBuffer.wrap( data[termID], 0, lengths[termID] );
+        ByteBuffer positionStream = ByteBuffer.wrap( positions[termID], 0, positionLengths[termID] );
+        PostingsList postings = PostingsCodec.decode( docs, positionStream, sizes[termID] );
+        if (open[termID] != null) {
+            if (postings == null) {
+                postings = new PostingsList();
+            }
+            postings.append( new PostingsEntry( open[termID] ));
+        }
+        return postings;
+    }
+}
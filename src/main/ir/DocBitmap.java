@@ -0,0 +1,504 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.Arrays;
+
+
+/**
+ *   A compressed set of docIDs, in the style of a Roaring bitmap. The
+ *   docIDs are divided into chunks of 65536 by their high 16 bits, and the
+ *   low 16 bits of the docIDs of each chunk are kept in a container of one
+ *   of three kinds, whichever is smallest:
+ *
+ *   - an array container: a sorted array of at most ARRAY_MAX values,
+ *   - a bitmap container: 1024 words with a bit for every value,
+ *   - a run container: a sorted array of runs of consecutive values.
+ *
+ *   Two bitmaps are intersected chunk by chunk, two bitmap containers by a
+ *   word-wise AND, and an array container by probing the other container
+ *   for each of its values. Membership is tested in a few steps, however
+ *   many documents the bitmap holds.
+ */
+public class DocBitmap {
+
+    /** The terms that occur in at least 1/DENSITY of the documents are given a bitmap. */
+    public static final int DENSITY = 32;
+
+    /** The largest number of values in an array container. */
+    static final int ARRAY_MAX = 4096;
+
+    /** The number of words of a bitmap container. */
+    static final int WORDS = 1024;
+
+    /** The high 16 bits of the docIDs of each chunk, in increasing order. */
+    private char[] keys = new char[4];
+
+    /** The low 16 bits of the docIDs of each chunk. */
+    private Container[] containers = new Container[4];
+
+    /** Number of chunks. */
+    private int size = 0;
+
+
+    /** Returns a bitmap of the documents of a cursor that has not been moved yet. */
+    public static DocBitmap of( PostingsCursor cursor ) {
+        DocBitmap bitmap = new DocBitmap();
+        for (int docID = cursor.nextDoc(); docID != PostingsCursor.NO_MORE_DOCS; docID = cursor.nextDoc()) {
+            bitmap.add( docID );
+        }
+        bitmap.optimize();
+        return bitmap;
+    }
+
+
+    /** Adds a docID, which must be larger than the ones already in the bitmap. */
+    public void add( int docID ) {
+        char key = (char) (docID >>> 16);
+        if (size == 0 || keys[size - 1] != key) {
+            if (size > 0 && keys[size - 1] > key) {
+                throw new IllegalArgumentException( "DocIDs must be added in increasing order." );
+            }
+            if (size == keys.length) {
+                keys = Arrays.copyOf( keys, 2 * size );
+                containers = Arrays.copyOf( containers, 2 * size );
+            }
+            keys[size] = key;
+            containers[size++] = new ArrayContainer();
+        }
+        containers[size - 1] = containers[size - 1].add( (char) docID );
+    }
+
+
+    /** Converts every container to the smallest kind for its values. */
+    public void optimize() {
+        for (int i = 0; i < size; i++) {
+            containers[i] = containers[i].optimize();
+        }
+    }
+
+
+    /** Returns the number of docIDs in the bitmap. */
+    public int cardinality() {
+        int cardinality = 0;
+        for (int i = 0; i < size; i++) {
+            cardinality += containers[i].cardinality();
+        }
+        return cardinality;
+    }
+
+
+    /** Returns true if the docID is in the bitmap. */
+    public boolean contains( int docID ) {
+        int i = Arrays.binarySearch( keys, 0, size, (char) (docID >>> 16) );
+        return i >= 0 && containers[i].contains( (char) docID );
+    }
+
+
+    /**
+     *  Returns the smallest docID in the bitmap that is at least the given
+     *  one, or NO_MORE_DOCS if there is none.
+     */
+    public int next( int docID ) {
+        docID = Math.max( docID, 0 );
+        int i = Arrays.binarySearch( keys, 0, size, (char) (docID >>> 16) );
+        if (i >= 0) {
+            int low = containers[i].next( docID & 0xffff );
+            if (low >= 0) {
+                return keys[i] << 16 | low;
+            }
+            i++;
+        } else {
+            i = -i - 1;
+        }
+        return i < size ? keys[i] << 16 | containers[i].next( 0 ) : PostingsCursor.NO_MORE_DOCS;
+    }
+
+
+    /** Returns the docIDs that are in both this bitmap and the other one. */
+    public DocBitmap and( DocBitmap other ) {
+        DocBitmap result = new DocBitmap();
+        int i = 0, j = 0;
+        while (i < this.size && j < other.size) {
+            if (this.keys[i] < other.keys[j]) {
+                i++;
+            } else if (this.keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                Container container = this.containers[i].and( other.containers[j] );
+                if (container.cardinality() > 0) {
+                    if (result.size == result.keys.length) {
+                        result.keys = Arrays.copyOf( result.keys, 2 * result.size );
+                        result.containers = Arrays.copyOf( result.containers, 2 * result.size );
+                    }
+                    result.keys[result.size] = keys[i];
+                    result.containers[result.size++] = container;
+                }
+                i++; j++;
+            }
+        }
+        return result;
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /** The low 16 bits of the docIDs of a chunk. */
+    private static abstract class Container {
+
+        /** Returns the number of values. */
+        abstract int cardinality();
+
+        /** Returns true if the value is in the container. */
+        abstract boolean contains( char value );
+
+        /**
+         *  Adds a value larger than the ones in the container, and returns
+         *  the container that holds them all, which may be a new one.
+         */
+        abstract Container add( char value );
+
+        /** Returns the smallest value that is at least the given one, or -1. */
+        abstract int next( int value );
+
+        /** Returns the values that are in both containers. */
+        abstract Container and( Container other );
+
+        /** Sets the bits of the values in 1024 words. */
+        abstract void setBits( long[] words );
+
+        /** Returns the number of runs of consecutive values. */
+        abstract int runs();
+
+        /** Returns a container of the smallest kind for the values of this one. */
+        Container optimize() {
+            int cardinality = cardinality(), runs = runs();
+            int arrayBytes = cardinality <= ARRAY_MAX ? 2 * cardinality : Integer.MAX_VALUE;
+            int bitmapBytes = 8 * WORDS;
+            int runBytes = 4 * runs;
+            if (runBytes < arrayBytes && runBytes < bitmapBytes) {
+                return this instanceof RunContainer ? this : RunContainer.of( this, runs );
+            }
+            long[] words = null;
+            if (!(this instanceof BitmapContainer)) {
+                words = new long[WORDS];
+                setBits( words );
+            }
+            if (arrayBytes <= bitmapBytes) {
+                return this instanceof ArrayContainer ? this
+                        : ArrayContainer.of( words != null ? words : ((BitmapContainer) this).words, cardinality );
+            }
+            return words == null ? this : new BitmapContainer( words, cardinality );
+        }
+    }
+
+
+    /** Returns an array or a bitmap container for the bits set in 1024 words. */
+    private static Container fromWords( long[] words, int cardinality ) {
+        if (cardinality <= ARRAY_MAX) {
+            return ArrayContainer.of( words, cardinality );
+        }
+        return new BitmapContainer( words, cardinality );
+    }
+
+
+    /** A sorted array of at most ARRAY_MAX values. */
+    private static class ArrayContainer extends Container {
+        private char[] values;
+        private int cardinality;
+
+        ArrayContainer() {
+            this( new char[4], 0 );
+        }
+
+        ArrayContainer( char[] values, int cardinality ) {
+            this.values = values;
+            this.cardinality = cardinality;
+        }
+
+        /** Returns a container of the bits set in 1024 words. */
+        static ArrayContainer of( long[] words, int cardinality ) {
+            char[] values = new char[cardinality];
+            int n = 0;
+            for (int i = 0; i < WORDS; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    values[n++] = (char) (i << 6 | Long.numberOfTrailingZeros( word ));
+                    word &= word - 1;
+                }
+            }
+            return new ArrayContainer( values, n );
+        }
+
+        int cardinality() {
+            return cardinality;
+        }
+
+        boolean contains( char value ) {
+            return Arrays.binarySearch( values, 0, cardinality, value ) >= 0;
+        }
+
+        Container add( char value ) {
+            if (cardinality > 0 && values[cardinality - 1] >= value) {
+                throw new IllegalArgumentException( "DocIDs must be added in increasing order." );
+            }
+            if (cardinality == ARRAY_MAX) {
+                long[] words = new long[WORDS];
+                setBits( words );
+                return new BitmapContainer( words, cardinality ).add( value );
+            }
+            if (cardinality == values.length) {
+                values = Arrays.copyOf( values, Math.min( 2 * cardinality, ARRAY_MAX ));
+            }
+            values[cardinality++] = value;
+            return this;
+        }
+
+        int next( int value ) {
+            int i = Arrays.binarySearch( values, 0, cardinality, (char) value );
+            if (i < 0) {
+                i = -i - 1;
+            }
+            return i < cardinality ? values[i] : -1;
+        }
+
+        Container and( Container other ) {
+            char[] result = new char[Math.min( cardinality, other.cardinality() )];
+            int n = 0;
+            if (other instanceof ArrayContainer) {
+                ArrayContainer array = (ArrayContainer) other;
+                int i = 0, j = 0;
+                while (i < cardinality && j < array.cardinality) {
+                    if (values[i] < array.values[j]) {
+                        i++;
+                    } else if (values[i] > array.values[j]) {
+                        j++;
+                    } else {
+                        result[n++] = values[i];
+                        i++; j++;
+                    }
+                }
+            } else {
+                // Probe the other container for every value of this one.
+                for (int i = 0; i < cardinality; i++) {
+                    if (other.contains( values[i] )) {
+                        result[n++] = values[i];
+                    }
+                }
+            }
+            return new ArrayContainer( result, n );
+        }
+
+        void setBits( long[] words ) {
+            for (int i = 0; i < cardinality; i++) {
+                words[values[i] >>> 6] |= 1L << values[i];
+            }
+        }
+
+        int runs() {
+            int runs = 0;
+            for (int i = 0; i < cardinality; i++) {
+                if (i == 0 || values[i] != values[i - 1] + 1) {
+                    runs++;
+                }
+            }
+            return runs;
+        }
+    }
+
+
+    /** A bit for each of the 65536 values of a chunk. */
+    private static class BitmapContainer extends Container {
+        private final long[] words;
+        private int cardinality;
+
+        BitmapContainer( long[] words, int cardinality ) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        int cardinality() {
+            return cardinality;
+        }
+
+        boolean contains( char value ) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        Container add( char value ) {
+            words[value >>> 6] |= 1L << value;
+            cardinality++;
+            return this;
+        }
+
+        int next( int value ) {
+            int i = value >>> 6;
+            long word = words[i] & (-1L << value);
+            while (word == 0) {
+                if (++i == WORDS) {
+                    return -1;
+                }
+                word = words[i];
+            }
+            return i << 6 | Long.numberOfTrailingZeros( word );
+        }
+
+        Container and( Container other ) {
+            if (other instanceof ArrayContainer) {
+                return other.and( this );
+            }
+            long[] result = new long[WORDS];
+            other.setBits( result );
+            int cardinality = 0;
+            for (int i = 0; i < WORDS; i++) {
+                result[i] &= words[i];
+                cardinality += Long.bitCount( result[i] );
+            }
+            return fromWords( result, cardinality );
+        }
+
+        void setBits( long[] words ) {
+            for (int i = 0; i < WORDS; i++) {
+                words[i] |= this.words[i];
+            }
+        }
+
+        int runs() {
+            // A run starts at every set bit whose lower neighbour is not set.
+            int runs = 0;
+            long carry = 0;
+            for (int i = 0; i < WORDS; i++) {
+                long word = words[i];
+                runs += Long.bitCount( word & ~(word << 1 | carry) );
+                carry = word >>> 63;
+            }
+            return runs;
+        }
+    }
+
+
+    /** Runs of consecutive values, as pairs of their first and last value. */
+    private static class RunContainer extends Container {
+        private char[] runs;
+        private int size;
+        private int cardinality;
+
+        RunContainer( char[] runs, int size, int cardinality ) {
+            this.runs = runs;
+            this.size = size;
+            this.cardinality = cardinality;
+        }
+
+        /** Returns a run container of the values of another container. */
+        static RunContainer of( Container container, int runs ) {
+            RunContainer result = new RunContainer( new char[2 * runs], 0, 0 );
+            for (int value = container.next( 0 ); value >= 0;
+                 value = value < 0xffff ? container.next( value + 1 ) : -1) {
+                result.add( (char) value );
+            }
+            return result;
+        }
+
+        int cardinality() {
+            return cardinality;
+        }
+
+        /** Returns the index of the last run that starts at or before the value, or -1. */
+        private int find( int value ) {
+            int lo = 0, hi = size - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (runs[2 * mid] <= value) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return hi;
+        }
+
+        boolean contains( char value ) {
+            int i = find( value );
+            return i >= 0 && value <= runs[2 * i + 1];
+        }
+
+        Container add( char value ) {
+            if (size > 0 && runs[2 * size - 1] >= value) {
+                throw new IllegalArgumentException( "DocIDs must be added in increasing order." );
+            }
+            if (size > 0 && runs[2 * size - 1] + 1 == value) {
+                runs[2 * size - 1] = value;
+            } else {
+                if (2 * size == runs.length) {
+                    runs = Arrays.copyOf( runs, Math.max( 4, 2 * runs.length ));
+                }
+                runs[2 * size] = value;
+                runs[2 * size + 1] = value;
+                size++;
+            }
+            cardinality++;
+            return this;
+        }
+
+        int next( int value ) {
+            int i = find( value );
+            if (i >= 0 && value <= runs[2 * i + 1]) {
+                return value;
+            }
+            return i + 1 < size ? runs[2 * (i + 1)] : -1;
+        }
+
+        Container and( Container other ) {
+            if (!(other instanceof RunContainer)) {
+                return other.and( this );
+            }
+            // Intersect the runs of both containers.
+            RunContainer run = (RunContainer) other;
+            RunContainer result = new RunContainer( new char[4], 0, 0 );
+            int i = 0, j = 0;
+            while (i < size && j < run.size) {
+                int start = Math.max( runs[2 * i], run.runs[2 * j] );
+                int last = Math.min( runs[2 * i + 1], run.runs[2 * j + 1] );
+                if (start <= last) {
+                    if (2 * result.size == result.runs.length) {
+                        result.runs = Arrays.copyOf( result.runs, 2 * result.runs.length );
+                    }
+                    result.runs[2 * result.size] = (char) start;
+                    result.runs[2 * result.size + 1] = (char) last;
+                    result.size++;
+                    result.cardinality += last - start + 1;
+                }
+                if (runs[2 * i + 1] < run.runs[2 * j + 1]) {
+                    i++;
+                } else {
+                    j++;
+                }
+            }
+            return result.optimize();
+        }
+
+        void setBits( long[] words ) {
+            for (int i = 0; i < size; i++) {
+                int start = runs[2 * i], end = runs[2 * i + 1] + 1;
+                int first = start >>> 6, last = (end - 1) >>> 6;
+                if (first == last) {
+                    words[first] |= (-1L << start) & (-1L >>> -end);
+                } else {
+                    words[first] |= -1L << start;
+                    for (int w = first + 1; w < last; w++) {
+                        words[w] = -1L;
+                    }
+                    words[last] |= -1L >>> -end;
+                }
+            }
+        }
+
+        int runs() {
+            return size;
+        }
+    }
+}
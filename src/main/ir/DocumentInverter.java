@@ -0,0 +1,194 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.Arrays;
+
+
+/**
+ *   Inverts a single document before it is inserted into the global index.
+ *
+ *   The tokens of the current document are collected as term -> positions
+ *   in an open-addressing hash table with primitive position arrays. When
+ *   the document is complete, every distinct term is inserted into the
+ *   index once, as a complete PostingsEntry. The table and the arrays are
+ *   reused from one document to the next.
+ *
+ *   The shared term dictionary is only consulted for the first occurrence
+ *   of a term in a document; the table keeps the ID the dictionary gave it
+ *   and a reference to the dictionary's copy of the term.
+ */
+public class DocumentInverter {
+
+    /** The distinct terms of the current document, in order of first occurrence. */
+    private String[] terms = new String[256];
+
+    /** The term ID of each distinct term. */
+    private int[] termIDs = new int[256];
+
+    /** The positions of each distinct term. */
+    private int[][] positions = new int[256][];
+
+    /** The number of positions of each distinct term. */
+    private int[] counts = new int[256];
+
+    /** Hash table from terms to (index of the term + 1), or 0 for an empty slot. */
+    private int[] table = new int[512];
+
+    /** Number of distinct terms in the current document. */
+    private int distinct = 0;
+
+    /** Number of tokens in the current document. */
+    private int length = 0;
+
+
+    /**
+     *  Adds the next token of the current document, given as the characters
+     *  @code{chars[start..start+length)}. A String is only created the first
+     *  time a term is added to the dictionary.
+     */
+    public void add( char[] chars, int start, int length ) {
+        int hash = 0;
+        for (int i = start; i < start + length; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while ( table[slot] != 0 ) {
+            int id = table[slot] - 1;
+            if ( equals( terms[id], chars, start, length )) {
+                addPosition( id );
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if ( distinct == terms.length ) {
+            grow();
+            add( chars, start, length );
+            return;
+        }
+        int id = distinct++;
+        termIDs[id] = Index.dictionary.add( chars, start, length );
+        terms[id] = Index.dictionary.term( termIDs[id] );
+        counts[id] = 0;
+        table[slot] = id + 1;
+        addPosition( id );
+    }
+
+
+    /** Adds the next token of the current document. */
+    public void add( String token ) {
+        add( token.toCharArray(), 0, token.length() );
+    }
+
+
+    private static boolean equals( String term, char[] chars, int start, int length ) {
+        if ( term.length() != length ) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if ( term.charAt( i ) != chars[start + i] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private void addPosition( int id ) {
+        int[] pos = positions[id];
+        if ( pos == null ) {
+            pos = positions[id] = new int[4];
+        } else if ( counts[id] == pos.length ) {
+            pos = positions[id] = Arrays.copyOf( pos, pos.length * 2 );
+        }
+        pos[counts[id]++] = length++;
+    }
+
+
+    /**
+     *  Doubles the number of distinct terms the buffer can hold, and rehashes.
+     *  String.hashCode() is the same hash as the one computed by add().
+     */
+    private void grow() {
+        int capacity = terms.length * 2;
+        terms = Arrays.copyOf( terms, capacity );
+        termIDs = Arrays.copyOf( termIDs, capacity );
+        positions = Arrays.copyOf( positions, capacity );
+        counts = Arrays.copyOf( counts, capacity );
+        table = new int[capacity * 2];
+        int mask = table.length - 1;
+        for (int id = 0; id < distinct; id++) {
+            int slot = terms[id].hashCode() & mask;
+            while ( table[slot] != 0 ) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id + 1;
+        }
+    }
+
+
+    /** Returns the number of tokens in the current document. */
+    public int length() {
+        return length;
+    }
+
+
+    /** Returns the number of distinct terms in the current document. */
+    public int distinctTerms() {
+        return distinct;
+    }
+
+
+    /** Returns the ith distinct term of the current document. */
+    public String term( int i ) {
+        return terms[i];
+    }
+
+
+    /** Returns the term ID of the ith distinct term of the current document. */
+    public int termID( int i ) {
+        return termIDs[i];
+    }
+
+
+    /** Returns the term frequency of the ith distinct term of the current document. */
+    public int termFrequency( int i ) {
+        return counts[i];
+    }
+
+
+    /**
+     *  Returns the posting of the ith distinct term of the current document.
+     */
+    public PostingsEntry posting( int docID, int i ) {
+        return new PostingsEntry( docID, Arrays.copyOf( positions[i], counts[i] ), counts[i] );
+    }
+
+
+    /**
+     *  Inserts every distinct term of the current document into the index
+     *  (and the k-gram index, if any), and starts a new document.
+     */
+    public void flush( int docID, Index index, KGramIndex kgIndex ) {
+        for (int i = 0; i < distinct; i++) {
+            index.insert( termIDs[i], posting( docID, i ));
+            if ( kgIndex != null ) {
+                kgIndex.insert( termIDs[i] );
+            }
+        }
+        clear();
+    }
+
+
+    /** Starts a new document, keeping the allocated arrays. */
+    public void clear() {
+        Arrays.fill( terms, 0, distinct, null );
+        Arrays.fill( table, 0 );
+        distinct = 0;
+        length = 0;
+    }
+}
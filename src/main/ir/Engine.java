@@ -9,6 +9,8 @@ package ir;
 
 import java.util.ArrayList;
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 
 /**
  *  This is the main class for the search engine.
@@ -16,8 +18,7 @@ import java.io.File;
 public class Engine {
 
     /** The inverted index. */
-    // Index index = new HashedIndex();
-    Index index = new PersistentHashedIndex();
+    Index index;
 
     /** The indexer creating the search index. */
     Indexer indexer;
@@ -61,6 +62,24 @@ public class Engine {
     /** For persistent indexes, we might not need to do any indexing. */
     boolean is_indexing = true;
 
+    /** Only index new and modified files into a delta of the persistent index. */
+    boolean is_updating = false;
+
+    /** Keep the whole index in main memory, with compressed postings, instead of on disk. */
+    boolean is_compressed = false;
+
+    /** Give the dictionary of a committed persistent index a minimal perfect hash function. */
+    boolean is_perfect_hash = false;
+
+    /** Number of tokenizer threads used for indexing. */
+    int num_threads = 1;
+
+    /** Number of file-reader and inverter threads of the indexing pipeline (0 means default). */
+    int num_readers = 0, num_inverters = 0;
+
+    /** Heap budget of an in-memory index block before it is spilled to disk. */
+    long block_budget = PersistentHashedIndex.DEFAULT_BLOCK_BUDGET;
+
     /** The directory where the resources are located. */
     public static final String RESOURCE_DIR = "src/main/resources/";
 
@@ -80,7 +99,23 @@ public class Engine {
      */
     public Engine( String[] args ) {
         decodeArgs( args );
-        indexer = new Indexer( index, kgIndex, patterns_file );
+        // index = new HashedIndex();
+        if (is_perfect_hash && !is_indexing && !is_compressed) {
+            PersistentHashedIndex.buildPerfectHash( PersistentHashedIndex.INDEXDIR );
+        }
+        if (is_compressed) {
+            index = new CompressedHashedIndex();
+        } else if (is_updating || (!is_indexing && TieredIndex.exists())) {
+            index = new TieredIndex( block_budget, is_updating );
+        } else {
+            if (is_indexing) {
+                TieredIndex.deleteDelta();
+            }
+            index = new PersistentHashedIndex( block_budget );
+        }
+        indexer = new Indexer( index, kgIndex, patterns_file, num_threads );
+        if (num_readers > 0) indexer.readers = num_readers;
+        if (num_inverters > 0) indexer.inverters = num_inverters;
         HRanker = new HITSRanker( link_file, title_file, index );
         searcher = new Searcher( index, kgIndex, HRanker );
         gui = new SearchGUI( this );
@@ -95,19 +130,25 @@ public class Engine {
             synchronized ( indexLock ) {
                 gui.displayInfoText( "Indexing, please wait..." );
                 long startTime = System.currentTimeMillis();
-                for (String dirName : dirNames) {
-                    File dokDir = new File(dirName);
-                    indexer.processFiles(dokDir, is_indexing);
+                try {
+                    if (is_updating) {
+                        indexer.updateFiles(dirNames, (TieredIndex) index);
+                    }
+                    else {
+                        for (String dirName : dirNames) {
+                            File dokDir = new File(dirName);
+                            indexer.processFiles(dokDir, is_indexing);
+                        }
+                    }
                     indexer.calcEucLengths(is_indexing);
-                    /*
-                     * MY CODE here (merge scalable persistent hashed index). Otherwise,
-                     * Exception in thread "main" java.lang.OutOfMemoryError: GC overhead limit exceeded
-                     * */
-                    // index.cleanup();
+                    long elapsedTime = System.currentTimeMillis() - startTime;
+                    gui.displayInfoText( String.format( "Indexing done in %.1f seconds.", elapsedTime/1000.0 ));
+                    index.cleanup();
+                } catch (IOException | UncheckedIOException e) {
+                    // Do not commit a partial index over the last complete one.
+                    System.err.println("ERROR: Indexing failed: " + e.getMessage());
+                    System.exit(1);
                 }
-                long elapsedTime = System.currentTimeMillis() - startTime;
-                gui.displayInfoText( String.format( "Indexing done in %.1f seconds.", elapsedTime/1000.0 ));
-                index.cleanup();
             }
         } else {
             gui.displayInfoText( "Index is loaded from disk." );
@@ -143,7 +184,12 @@ public class Engine {
                 case "-d":
                     i++;
                     if (i < args.length) {
-                        dirNames.add(DATASET_DIR + args[i++]);
+                        String dirName = DATASET_DIR + args[i++];
+                        // Index the zipped dataset directly if it has not been unpacked.
+                        if (!new File(dirName).exists() && new File(dirName + ".zip").exists()) {
+                            dirName += ".zip";
+                        }
+                        dirNames.add(dirName);
                     }
                     break;
                 case "-p":
@@ -176,15 +222,57 @@ public class Engine {
                         link_file = TITLE_DIR + args[i++];
                     }
                     break;
+                case "-threads":
+                    i++;
+                    if (i < args.length) {
+                        num_threads = Integer.parseInt(args[i++]);
+                    }
+                    break;
+                case "-readers":
+                    i++;
+                    if (i < args.length) {
+                        num_readers = Integer.parseInt(args[i++]);
+                    }
+                    break;
+                case "-inverters":
+                    i++;
+                    if (i < args.length) {
+                        num_inverters = Integer.parseInt(args[i++]);
+                    }
+                    break;
+                case "-budget":
+                    i++;
+                    if (i < args.length) {
+                        block_budget = Long.parseLong(args[i++]) * 1024 * 1024;
+                    }
+                    break;
+                case "-u":
+                    i++;
+                    is_updating = true;
+                    break;
                 case "-ni":
                     i++;
                     is_indexing = false;
                     break;
+                case "-compressed":
+                    i++;
+                    is_compressed = true;
+                    break;
+                case "-mph":
+                    i++;
+                    is_perfect_hash = true;
+                    break;
                 default:
                     System.err.println("Unknown option: " + args[i]);
                     break;
             }
         }
+        if (is_compressed && (is_updating || !is_indexing)) {
+            // A compressed index is kept in main memory only, so there is
+            // nothing on disk to update or to load.
+            System.err.println("Usage: -compressed indexes the documents on every start, and cannot be combined with -u or -ni.");
+            System.exit(1);
+        }
     }
 
 
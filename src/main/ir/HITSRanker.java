@@ -298,7 +298,7 @@ public class HITSRanker {
         HashSet<String> titles = new HashSet<>();
         for (PostingsEntry entry: post.getList()) {
             String title = index.docNames.get(entry.docID);
-            titles.add(title.substring(title.lastIndexOf(File.separator) + 1));
+            titles.add(Indexer.getFileName(title));
         }
 
         HashSet<Integer> titleIDs = iterate(titles.toArray(new String[0]), true);
@@ -8,29 +8,37 @@
 
 package ir;
 
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.function.BiConsumer;
+import java.util.function.ObjIntConsumer;
 
 
 /**
- *   Implements an inverted index as a Hashtable from words to PostingsLists.
+ *   Implements an inverted index as a table from term IDs to PostingsLists.
+ *   Terms are given their IDs by the shared dictionary.
  */
 public class HashedIndex implements Index {
 
 
-    /** The index as a hashtable. */
-    private final HashMap<String,PostingsList> index = new HashMap<String,PostingsList>();
+    /** The index as a table addressed by term ID. */
+    private final PostingsTable index = new PostingsTable();
+
+
+    /** The bitmaps of the common terms, built when they are first asked for. */
+    private final BitmapTable bitmaps = new BitmapTable();
 
 
     /**
-     *  Inserts this token in the hashtable.
+     *  Inserts this token in the table.
      */
     public void insert( String token, int docID, int offset ) {
-        PostingsList postList = this.getPostings(token);
+        int termID = dictionary.add(token);
+        bitmaps.clear();
+        PostingsList postList = this.index.get(termID);
         // If PostingsList does not exist
         if (postList == null) {
             postList = new PostingsList(docID, offset);
-            this.index.put(token, postList);
+            this.index.put(termID, postList);
         }
         // If PostingsList exists
         else {
@@ -39,14 +47,73 @@ public class HashedIndex implements Index {
     }
 
 
+    /**
+     *  Appends the posting of a document, built by a DocumentInverter.
+     */
+    public void insert( int termID, PostingsEntry entry ) {
+        bitmaps.clear();
+        PostingsList postList = this.index.get(termID);
+        if (postList == null) {
+            postList = new PostingsList();
+            this.index.put(termID, postList);
+        }
+        postList.append(entry);
+    }
+
+
+    /**
+     *  Appends the postings of a term, e.g. from an index shard.
+     */
+    public void merge( int termID, PostingsList postings ) {
+        bitmaps.clear();
+        PostingsList postList = this.index.get(termID);
+        if (postList == null) {
+            this.index.put(termID, postings);
+        }
+        else {
+            postList.append(postings);
+        }
+    }
+
+
+    /**
+     *  Visits every term in the index together with its postings list.
+     */
+    public void forEachTerm( BiConsumer<String,PostingsList> visitor ) {
+        for (int i = 0; i < index.size(); i++) {
+            int termID = index.termID(i);
+            visitor.accept(dictionary.term(termID), index.get(termID));
+        }
+    }
+
+
+    /**
+     *  Visits every term in the index by its term ID, in the order in which
+     *  the terms were first inserted.
+     */
+    public void forEachTermID( ObjIntConsumer<PostingsList> visitor ) {
+        for (int i = 0; i < index.size(); i++) {
+            int termID = index.termID(i);
+            visitor.accept(index.get(termID), termID);
+        }
+    }
+
+
     /**
      *  Returns the postings for a specific term, or null
      *  if the term is not in the index.
      */
     public PostingsList getPostings( String token ) {
-        // Returns the value to which the specified key is mapped, or
-        // defaultValue if this map contains no mapping for the key.
-        return index.getOrDefault(token, null);
+        // Terms that are not in the dictionary have no postings.
+        return index.get(dictionary.lookup(token));
+    }
+
+    /**
+     *  Returns a bitmap of the documents that contain a term, if it occurs
+     *  in a large fraction of the documents, or null.
+     */
+    public DocBitmap getBitmap( String token ) {
+        return bitmaps.get(this, token);
     }
 
 
@@ -8,6 +8,8 @@
 package ir;
 
 import java.util.HashMap;
+import java.util.List;
+import java.util.function.BiConsumer;
 
 /**
  *  Defines some common data structures and methods that all types of
@@ -24,18 +26,108 @@ public interface Index {
     /** Mapping from document identifier to document Euclidean length. */
     public HashMap<Integer,Double> docEucLengths = new HashMap<Integer,Double>();
 
+    /** Mapping from document identifier to Euclidean length with log-frequency weights. */
+    public HashMap<Integer,Double> docLogEucLengths = new HashMap<Integer,Double>();
+
+    /** Mapping from document identifier to the modification time of the document. */
+    public HashMap<Integer,Long> docModified = new HashMap<Integer,Long>();
+
+    /** Mapping from document identifier to the CRC-32 checksum of the document contents. */
+    public HashMap<Integer,Long> docChecksums = new HashMap<Integer,Long>();
+
     /** Mapping from document identifiers to pagerank scores. */
     public HashMap<Integer,Double> docRanks = new HashMap<Integer,Double>();
 
     /** Mapping from document titles to document identifiers. */
     public HashMap<String,Integer> docIDs = new HashMap<String,Integer>();
 
+    /** The term IDs shared by all indexes and the k-gram index. */
+    public TermDictionary dictionary = new TermDictionary();
+
     /** Inserts a token into the index. */
     public void insert( String token, int docID, int offset );
 
+    /**
+     *  Inserts all occurrences of a term in one document at once. The docID
+     *  must be larger than the ones already indexed for the term.
+     */
+    public void insert( int termID, PostingsEntry entry );
+
+    /**
+     *  Appends a postings list to the postings of a term. All docIDs of the
+     *  appended list must be larger than the ones already indexed for the term.
+     */
+    public void merge( int termID, PostingsList postings );
+
+    /** Visits every term of the index built so far together with its postings. */
+    public void forEachTerm( BiConsumer<String,PostingsList> visitor );
+
+    /** Visits a term with some of its postings and the number of documents that contain it. */
+    public interface TermVisitor {
+        void accept( String term, PostingsList postings, int docFreq );
+    }
+
+    /**
+     *  Visits every term of the index built so far with its postings and its
+     *  document frequency. An index that is built on top of another one may
+     *  visit only the postings it has built itself, together with the
+     *  document frequency in the whole index, so that the postings of the
+     *  other index need not be copied.
+     */
+    default void forEachTerm( TermVisitor visitor ) {
+        forEachTerm( (term, postings) -> visitor.accept( term, postings, postings.size() ));
+    }
+
     /** Returns the postings for a given term. */
     public PostingsList getPostings( String token );
 
+    /**
+     *  Returns a cursor over the postings for a given term, or null if the
+     *  term is not in the index. Indexes that keep their postings encoded
+     *  return a cursor that decodes them lazily.
+     */
+    default PostingsCursor getCursor( String token ) {
+        PostingsList postings = getPostings(token);
+        return postings == null ? null : postings.cursor();
+    }
+
+    /**
+     *  Returns a cursor over the postings for a given term, or null if the
+     *  term is not in the index. If the positions are not needed, an index
+     *  that stores them apart may leave them unread, and the positions of
+     *  the cursor may then not be asked for.
+     */
+    default PostingsCursor getCursor( String token, boolean positions ) {
+        return getCursor(token);
+    }
+
+    /**
+     *  Returns a bitmap of the documents that contain a term, or null if
+     *  the index keeps none for it. Indexes keep bitmaps only for terms
+     *  that occur in a large fraction of the documents.
+     */
+    default DocBitmap getBitmap( String token ) {
+        return null;
+    }
+
+    /**
+     *  Returns the terms of the index that start with a prefix, in sorted
+     *  order, or null if the index cannot enumerate its terms. The Searcher
+     *  expands a query term that ends with '*' into these terms.
+     */
+    default List<String> getTermsWithPrefix( String prefix ) {
+        return null;
+    }
+
+    /**
+     *  Returns the number of documents that contain a term. Indexes that
+     *  can tell without fetching and decoding the postings list should.
+     */
+    default int getDocFreq( String term ) {
+        PostingsList postings = getPostings(term);
+        return postings == null ? 0 : postings.size();
+    }
+
     /**
      *  Calculate Inverse Document Frequency.
      *  @param term the given term t
@@ -43,7 +135,7 @@ public interface Index {
      */
     default double getInvDocFreq( String term ) {
         double n = docLengths.size();
-        double df = getPostings(term).getList().size();
+        double df = getDocFreq(term);
         return Math.log10(n/df);
     }
 
@@ -9,11 +9,13 @@ package ir;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
 import java.nio.charset.*;
 
 
 /**
- *   Processes a directory structure and indexes all PDF and text files.
+ *   Processes a directory structure (or zip archive) and indexes all PDF and text files.
  */
 public class Indexer {
 
@@ -26,18 +28,139 @@ public class Indexer {
     /** The next docID to be generated. */
     private int lastDocID = 0;
 
+    /** The first docID generated by this Indexer. */
+    private int firstDocID = 0;
+
     /** The patterns matching non-standard words (e-mail addresses, etc.) */
     String patterns_file;
 
+    /** Number of tokenizer threads used for indexing (1 means sequential indexing). */
+    int threads;
+
+    /** Number of file-reader threads used by the indexing pipeline. */
+    int readers = 1;
+
+    /** Number of inverter threads used by the indexing pipeline. */
+    int inverters;
+
+    /** Number of consecutive documents that a worker indexes into one shard. */
+    static final int BATCH_SIZE = 64;
+
+    /** Separates the path of an archive from the name of an entry in docNames. */
+    public static final String ARCHIVE_SEPARATOR = "!/";
+
+    /** The archives opened to show documents, by path, which stay open until exit. */
+    private static final HashMap<String,ZipFile> openArchives = new HashMap<String,ZipFile>();
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  A document to be indexed, which is either a file or an entry of a
+     *  zip archive.
+     */
+    static class Document {
+        final String name;
+        final File file;
+        final ZipFile archive;
+        final ZipEntry entry;
+
+        Document( File file ) {
+            this.name = file.getPath();
+            this.file = file;
+            this.archive = null;
+            this.entry = null;
+        }
+
+        Document( File file, ZipFile archive, ZipEntry entry ) {
+            this.name = file.getPath() + ARCHIVE_SEPARATOR + entry.getName();
+            this.file = file;
+            this.archive = archive;
+            this.entry = entry;
+        }
+
+        /** The stream of the last opened file, which computes its checksum. */
+        CheckedInputStream checked;
+
+        /** Opens the document. Entries of the same archive may be read concurrently. */
+        Reader open() throws IOException {
+            InputStream in;
+            if (archive == null) {
+                checked = new CheckedInputStream( new FileInputStream( file ), new CRC32() );
+                in = checked;
+            } else {
+                in = archive.getInputStream( entry );
+            }
+            return new InputStreamReader( in, StandardCharsets.UTF_8 );
+        }
+
+        /** Returns the modification time of the document. */
+        long modified() {
+            return (archive == null) ? file.lastModified() : entry.getTime();
+        }
+
+        /**
+         *  Returns the CRC-32 checksum of the document contents. For a file that
+         *  has been opened, this is computed while the file is being read.
+         */
+        long checksum() throws IOException {
+            if (archive != null) {
+                return entry.getCrc();
+            }
+            if (checked == null) {
+                checked = new CheckedInputStream( new FileInputStream( file ), new CRC32() );
+            }
+            byte[] rest = new byte[8192];
+            while ( checked.read( rest ) >= 0 ) {
+                // Consume whatever the reader has not read.
+            }
+            checked.close();
+            long crc = checked.getChecksum().getValue();
+            checked = null;
+            return crc;
+        }
+    }
+
 
     /* ----------------------------------------------- */
 
 
+    /**
+     *  A shard of the index, built by one worker from a batch of consecutive
+     *  documents. Shards are merged into the global index in batch order, so
+     *  the postings lists of the global index stay sorted by docID.
+     */
+    static class Shard {
+        final HashedIndex index = new HashedIndex();
+        final int firstDocID;
+        final String[] names;
+        final int[] lengths;
+        final long[] modified;
+        final long[] checksums;
+
+        Shard( int firstDocID, int size ) {
+            this.firstDocID = firstDocID;
+            this.names = new String[size];
+            this.lengths = new int[size];
+            this.modified = new long[size];
+            this.checksums = new long[size];
+        }
+    }
+
+
     /** Constructor */
     public Indexer( Index index, KGramIndex kgIndex, String patterns_file ) {
+        this( index, kgIndex, patterns_file, 1 );
+    }
+
+    /** Constructor for (possibly) parallel indexing. */
+    public Indexer( Index index, KGramIndex kgIndex, String patterns_file, int threads ) {
         this.index = index;
         this.kgIndex = kgIndex;
         this.patterns_file = patterns_file;
+        this.threads = Math.max( 1, threads );
+        this.inverters = this.threads;
     }
 
 
@@ -49,68 +172,303 @@ public class Indexer {
 
     /**
      *  Tokenizes and indexes the file @code{f}. If <code>f</code> is a directory,
-     *  all its files and subdirectories are recursively processed.
+     *  all its files and subdirectories are recursively processed, and if it is
+     *  a zip archive, its entries are indexed without unpacking them. The files
+     *  are indexed by a pool of worker threads if more than one thread is
+     *  configured. An IOException means that indexing has failed, and that
+     *  the index must not be committed.
      */
-    public void processFiles( File f, boolean is_indexing ) {
-        // do not try to index fs that cannot be read
+    public void processFiles( File f, boolean is_indexing ) throws IOException {
         if (is_indexing) {
-            if ( f.canRead() ) {
-                if ( f.isDirectory() ) {
-                    String[] fs = f.list();
-                    // an IO error could occur
-                    if ( fs != null ) {
-                        for (String s : fs) {
-                            processFiles(new File(f, s), is_indexing);
-                        }
+            ArrayList<ZipFile> archives = new ArrayList<ZipFile>();
+            ArrayList<Document> docs = new ArrayList<Document>();
+            collectDocuments( f, docs, archives );
+            try {
+                indexDocuments( docs );
+            } finally {
+                closeArchives( archives );
+            }
+        }
+    }
+
+
+    /**
+     *  Incrementally indexes the given directories into the delta of a tiered
+     *  index. Documents that are new or whose contents have changed since the
+     *  base index was built are indexed into the delta, and base documents
+     *  that have changed or disappeared are masked. A document whose
+     *  modification time has changed is only re-indexed if its checksum has
+     *  changed as well. An IOException means that indexing has failed, and
+     *  that the delta must not be committed.
+     */
+    public void updateFiles( List<String> dirNames, TieredIndex tiered ) throws IOException {
+        lastDocID = firstDocID = tiered.firstDeltaDocID;
+        HashMap<String,Integer> baseDocIDs = new HashMap<String,Integer>();
+        for (Map.Entry<Integer,String> entry : index.docNames.entrySet()) {
+            baseDocIDs.put( entry.getValue(), entry.getKey() );
+        }
+        ArrayList<ZipFile> archives = new ArrayList<ZipFile>();
+        ArrayList<Document> docs = new ArrayList<Document>();
+        for (String dirName : dirNames) {
+            collectDocuments( new File( dirName ), docs, archives );
+        }
+        ArrayList<Document> changed = new ArrayList<Document>();
+        for (Document doc : docs) {
+            Integer docID = baseDocIDs.remove( doc.name );
+            try {
+                if (docID == null) {
+                    changed.add( doc );
+                }
+                else if (doc.modified() != index.docModified.getOrDefault( docID, 0L ) &&
+                        doc.checksum() != index.docChecksums.getOrDefault( docID, 0L )) {
+                    tiered.delete( docID );
+                    changed.add( doc );
+                }
+            } catch ( IOException e ) {
+                System.err.println( "Warning: IOException checking " + doc.name );
+            }
+        }
+        // The documents that were not found any more have been deleted.
+        for (int docID : baseDocIDs.values()) {
+            tiered.delete( docID );
+        }
+        System.out.println( changed.size() + " new or modified files, " + baseDocIDs.size() + " deleted files" );
+        try {
+            indexDocuments( changed );
+        } finally {
+            closeArchives( archives );
+        }
+    }
+
+
+    /**
+     *  Indexes the documents, in parallel if more than one thread is
+     *  configured, and reports the indexing throughput.
+     */
+    private void indexDocuments( List<Document> docs ) throws IOException {
+        long startTime = System.currentTimeMillis();
+        int first = lastDocID;
+        if ( threads > 1 || readers > 1 || inverters > 1 ) {
+            processFilesInParallel( docs );
+        } else {
+            processFilesSequentially( docs );
+        }
+        double elapsed = Math.max( 1, System.currentTimeMillis() - startTime ) / 1000.0;
+        int indexed = lastDocID - first;
+        System.out.println( String.format( "Indexed %d files in %.1f seconds (%.1f docs/sec, %d threads)",
+                indexed, elapsed, indexed / elapsed, threads ));
+    }
+
+
+    /**
+     *  Tokenizes and indexes the documents on the calling thread.
+     */
+    private void processFilesSequentially( List<Document> docs ) {
+        DocumentInverter inverter = new DocumentInverter();
+        for (Document doc : docs) {
+            // First register the document and get a docID
+            int docID = generateDocID();
+            if ( docID%1000 == 0 ) System.out.println( "Indexed " + docID + " files" );
+            try {
+                Reader reader = doc.open();
+                Tokenizer tok = Tokenizer.forThread( reader, true, false, true, patterns_file );
+                while ( tok.next() ) {
+                    inverter.add( tok.termBuffer(), tok.termStart(), tok.termLength() );
+                }
+                int length = inverter.length();
+                // Each distinct term of the document goes into the index once.
+                inverter.flush( docID, index, kgIndex );
+                index.docNames.put( docID, doc.name );
+                index.docLengths.put( docID, length );
+                index.docModified.put( docID, doc.modified() );
+                index.docChecksums.put( docID, doc.checksum() );
+                reader.close();
+            } catch ( IOException e ) {
+                System.err.println( "Warning: IOException during indexing." );
+            }
+        }
+    }
+
+
+    /** Closes the archives opened while collecting documents. */
+    private void closeArchives( List<ZipFile> archives ) {
+        for (ZipFile archive : archives) {
+            try {
+                archive.close();
+            } catch ( IOException e ) {
+                System.err.println( "Warning: IOException closing " + archive.getName() );
+            }
+        }
+    }
+
+
+    /**
+     *  Collects the documents below @code{f} in traversal order, so that
+     *  sequential and parallel indexing generate the same docIDs. Zip
+     *  archives are opened and added to @code{archives}; their entries are
+     *  collected in the order of the archive.
+     */
+    private void collectDocuments( File f, ArrayList<Document> docs, ArrayList<ZipFile> archives ) {
+        // do not try to index fs that cannot be read
+        if ( f.canRead() ) {
+            if ( f.isDirectory() ) {
+                String[] fs = f.list();
+                // an IO error could occur
+                if ( fs != null ) {
+                    for (String s : fs) {
+                        collectDocuments(new File(f, s), docs, archives);
                     }
-                } else {
-                    // First register the document and get a docID
-                    int docID = generateDocID();
-                    if ( docID%1000 == 0 ) System.out.println( "Indexed " + docID + " files" );
-                    try {
-                        Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
-                        Tokenizer tok = new Tokenizer( reader, true, false, true, patterns_file );
-                        int offset = 0;
-                        while ( tok.hasMoreTokens() ) {
-                            String token = tok.nextToken();
-                            insertIntoIndex( docID, token, offset++ );
+                }
+            } else if ( isArchive( f )) {
+                try {
+                    ZipFile archive = new ZipFile( f, StandardCharsets.UTF_8 );
+                    archives.add( archive );
+                    Enumeration<? extends ZipEntry> entries = archive.entries();
+                    while ( entries.hasMoreElements() ) {
+                        ZipEntry entry = entries.nextElement();
+                        if ( !entry.isDirectory() ) {
+                            docs.add( new Document( f, archive, entry ));
                         }
-                        index.docNames.put( docID, f.getPath() );
-                        index.docLengths.put( docID, offset );
-                        reader.close();
-                    } catch ( IOException e ) {
-                        System.err.println( "Warning: IOException during indexing." );
                     }
+                } catch ( IOException e ) {
+                    System.err.println( "Warning: IOException opening archive " + f.getPath() );
                 }
+            } else {
+                docs.add( new Document( f ));
+            }
+        }
+    }
+
+
+    /** Returns true if the file is a zip archive whose entries should be indexed. */
+    static boolean isArchive( File f ) {
+        return f.getName().toLowerCase().endsWith( ".zip" );
+    }
+
+
+    /**
+     *  Opens a document by its name in docNames, which is either a file path
+     *  or "archive!/entry" for a document inside a zip archive. An archive
+     *  is opened once and shared by all the documents read from it.
+     */
+    public static Reader openDocument( String docName ) throws IOException {
+        int sep = docName.indexOf( ARCHIVE_SEPARATOR );
+        if ( sep < 0 ) {
+            return new InputStreamReader( new FileInputStream( docName ), StandardCharsets.UTF_8 );
+        }
+        ZipFile archive = openArchive( docName.substring( 0, sep ));
+        ZipEntry entry = archive.getEntry( docName.substring( sep + ARCHIVE_SEPARATOR.length() ));
+        if ( entry == null ) {
+            throw new FileNotFoundException( docName );
+        }
+        return new InputStreamReader( archive.getInputStream( entry ), StandardCharsets.UTF_8 );
+    }
+
+
+    /**
+     *  Returns the open archive with the given path, and opens it if it is
+     *  not open yet. The archives are closed when the JVM exits.
+     */
+    private static synchronized ZipFile openArchive( String path ) throws IOException {
+        ZipFile archive = openArchives.get( path );
+        if ( archive == null ) {
+            if ( openArchives.isEmpty() ) {
+                Runtime.getRuntime().addShutdownHook( new Thread( Indexer::closeOpenArchives ));
+            }
+            archive = new ZipFile( path, StandardCharsets.UTF_8 );
+            openArchives.put( path, archive );
+        }
+        return archive;
+    }
+
+
+    /** Closes the archives opened to show documents. */
+    static synchronized void closeOpenArchives() {
+        for (ZipFile archive : openArchives.values()) {
+            try {
+                archive.close();
+            } catch ( IOException e ) {
+                System.err.println( "Warning: IOException closing " + archive.getName() );
+            }
+        }
+        openArchives.clear();
+    }
+
+
+    /**
+     *  Returns the file name of a document, i.e. the last component of its
+     *  path or of its archive entry name.
+     */
+    public static String getFileName( String docName ) {
+        int sep = Math.max( docName.lastIndexOf( File.separatorChar ), docName.lastIndexOf( '/' ));
+        return docName.substring( sep + 1 );
+    }
+
+
+    /**
+     *  Indexes the documents with a staged pipeline of file-reader,
+     *  tokenizer and inverter threads. Batches of consecutive docIDs are
+     *  inverted into their own shards, which are merged into the global
+     *  index in batch order on the calling thread.
+     */
+    private void processFilesInParallel( List<Document> docs ) throws IOException {
+        int firstDocID = lastDocID;
+        lastDocID += docs.size();
+        new IndexingPipeline( this, readers, threads, inverters ).run( docs, firstDocID );
+    }
+
+
+    /**
+     *  Merges a shard into the global index. Shards must be merged in the
+     *  order of their docIDs.
+     */
+    void mergeShard( Shard shard ) {
+        shard.index.forEachTermID( (postings, termID) -> {
+            index.merge( termID, postings );
+            if (kgIndex != null)
+                kgIndex.insert( termID );
+        });
+        for (int i = 0; i < shard.names.length; i++) {
+            int docID = shard.firstDocID + i;
+            if ( docID%1000 == 0 ) System.out.println( "Indexed " + docID + " files" );
+            if ( shard.names[i] != null ) {
+                index.docNames.put( docID, shard.names[i] );
+                index.docLengths.put( docID, shard.lengths[i] );
+                index.docModified.put( docID, shard.modified[i] );
+                index.docChecksums.put( docID, shard.checksums[i] );
             }
         }
     }
 
-    /** Calculate the Euclidean length of each document vector in TF-IDF space */
+    /**
+     *  Calculate the Euclidean length of each document vector in TF-IDF space,
+     *  both with raw and with logarithmic term frequencies. The lengths are
+     *  accumulated in a single sweep over the postings of the index, so the
+     *  documents are not read a second time. Only the lengths of documents
+     *  indexed by this Indexer are stored.
+     */
     public void calcEucLengths( boolean is_indexing ) {
         if (is_indexing) {
             System.out.println( "Computing EucLength..." );
+            double n = index.docLengths.size();
+            HashMap<Integer, Double> sums = new HashMap<Integer, Double>();
+            HashMap<Integer, Double> logSums = new HashMap<Integer, Double>();
+            index.forEachTerm( (term, postings, docFreq) -> {
+                double idf = Math.log10( n / docFreq );
+                for (int i = 0; i < postings.size(); i++) {
+                    PostingsEntry entry = postings.get(i);
+                    double w = entry.getTermFreqWeight( false ) * idf;
+                    double logW = entry.getTermFreqWeight( true ) * idf;
+                    sums.merge( entry.docID, w * w, Double::sum );
+                    logSums.merge( entry.docID, logW * logW, Double::sum );
+                }
+            });
             for (Integer docID : index.docNames.keySet()) {
-                try {
-                    String f = index.docNames.get(docID);
-                    Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
-                    Tokenizer tok = new Tokenizer( reader, true, false, true, patterns_file );
-                    HashMap<String, Integer> termFreq = new HashMap<String, Integer>();
-                    while ( tok.hasMoreTokens() ) {
-                        String token = tok.nextToken();
-                        termFreq.compute(token, (key, value) -> (value == null) ? 1 : value + 1);
-                    }
-                    // NEW CODE HERE.
-                    double sum = 0.0;
-                    for (String term : termFreq.keySet()) {
-                        sum += Math.pow(termFreq.get(term) * index.getInvDocFreq(term), 2);
-                    }
-                    index.docEucLengths.put(docID, Math.pow(sum, 0.5));
-                    // NEW CODE ENDS.
-                    reader.close();
-                } catch ( IOException e ) {
-                    System.err.println( "Warning: IOException during EucLength Calculation." );
+                if (docID < firstDocID) {
+                    continue;
                 }
+                index.docEucLengths.put( docID, Math.sqrt( sums.getOrDefault( docID, 0.0 )));
+                index.docLogEucLengths.put( docID, Math.sqrt( logSums.getOrDefault( docID, 0.0 )));
             }
             System.out.println( "EucLength are saved in docInfo." );
         }
@@ -170,8 +528,7 @@ public class Indexer {
             try {
                 // Mapping true ID -> docName -> fake ID -> pagerank score
                 for (Integer id : index.docNames.keySet()) {
-                    String name = index.docNames.get(id);
-                    name = name.substring(name.lastIndexOf(File.separator) + 1);
+                    String name = getFileName(index.docNames.get(id));
                     Integer f_id = docName.get(name);
                     Double score = docRank.get(f_id);
                     index.docRanks.put( id, score );
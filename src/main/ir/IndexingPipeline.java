@@ -0,0 +1,324 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+/**
+ *   A staged indexing pipeline. Batches of consecutive documents flow from
+ *   a file-reader stage through a tokenization stage to an inversion stage,
+ *   which builds one index shard per batch. Every stage runs on its own pool
+ *   of threads, and the stages are connected by bounded queues, so a slow
+ *   stage blocks the stages before it instead of letting batches pile up in
+ *   memory. The calling thread merges the shards into the global index in
+ *   batch order, which keeps the postings lists sorted by docID, and hands
+ *   out the batches to read as the shards are merged, so that the number of
+ *   batches in flight is bounded as well.
+ */
+class IndexingPipeline {
+
+    /** A batch of consecutive documents on its way through the pipeline. */
+    static class Batch {
+        final int seq;
+        final List<Indexer.Document> docs;
+        final Indexer.Shard shard;
+        String[] texts;
+
+        /**
+         *  The tokens of the batch, stored back to back in @code{chars}.
+         *  Token i ends at @code{ends[i]}, and the tokens of document d end
+         *  at token @code{docEnds[d]}, which is -1 if d could not be read.
+         */
+        char[] chars;
+        int[] ends;
+        int[] docEnds;
+
+        Batch( int seq, int firstDocID, List<Indexer.Document> docs ) {
+            this.seq = seq;
+            this.docs = docs;
+            this.shard = new Indexer.Shard( firstDocID, docs.size() );
+        }
+    }
+
+    /** Marks the end of the stream of batches. */
+    private static final Batch END = new Batch( -1, 0, Collections.<Indexer.Document>emptyList() );
+
+
+    /**
+     *   The threads of one stage, together with throughput counters. Busy time
+     *   is spent working on batches, input wait is spent waiting for batches
+     *   from the previous stage, and output wait is spent blocked on a full
+     *   queue to the next stage.
+     */
+    static class Stage {
+        final String name;
+        final int threads;
+        final AtomicLong docs = new AtomicLong();
+        final AtomicLong busyNanos = new AtomicLong();
+        final AtomicLong inputWaitNanos = new AtomicLong();
+        final AtomicLong outputWaitNanos = new AtomicLong();
+
+        Stage( String name, int threads ) {
+            this.name = name;
+            this.threads = Math.max( 1, threads );
+        }
+
+        String report( long elapsedNanos ) {
+            double total = (double) elapsedNanos * threads;
+            double busy = busyNanos.get() / 1e9;
+            return String.format( "  %-8s %2d threads, %6.1f docs/sec per thread, busy %3.0f%%, waiting for input %3.0f%%, blocked on output %3.0f%%",
+                    name, threads, busy > 0 ? docs.get() / busy : 0.0,
+                    100 * busyNanos.get() / total, 100 * inputWaitNanos.get() / total,
+                    100 * outputWaitNanos.get() / total );
+        }
+    }
+
+
+    /** The indexer whose documents are indexed. */
+    private final Indexer indexer;
+
+    private final Stage read, tokenize, invert;
+
+    /** The first exception thrown by a stage, which aborts the pipeline. */
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+
+    /* ----------------------------------------------- */
+
+
+    IndexingPipeline( Indexer indexer, int readers, int tokenizers, int inverters ) {
+        this.indexer = indexer;
+        this.read = new Stage( "read", readers );
+        this.tokenize = new Stage( "tokenize", tokenizers );
+        this.invert = new Stage( "invert", inverters );
+    }
+
+
+    /**
+     *  Indexes the documents, which get the docIDs from @code{firstDocID} on.
+     *  If a stage fails, the pipeline is stopped and the failure is thrown
+     *  once all its threads have ended, so that the caller does not go on to
+     *  commit a partial index.
+     */
+    void run( List<Indexer.Document> docs, int firstDocID ) throws IOException {
+        long startTime = System.nanoTime();
+        int batches = (docs.size() + Indexer.BATCH_SIZE - 1) / Indexer.BATCH_SIZE;
+        int window = 2 * (read.threads + tokenize.threads + invert.threads);
+
+        BlockingQueue<Batch> source = new ArrayBlockingQueue<Batch>( window + 1 );
+        BlockingQueue<Batch> read2tokenize = new ArrayBlockingQueue<Batch>( 2 * tokenize.threads );
+        BlockingQueue<Batch> tokenize2invert = new ArrayBlockingQueue<Batch>( 2 * invert.threads );
+        BlockingQueue<Batch> invert2merge = new ArrayBlockingQueue<Batch>( 2 * invert.threads );
+
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        threads.addAll( startStage( read, source, read2tokenize, this::readBatch ));
+        threads.addAll( startStage( tokenize, read2tokenize, tokenize2invert, this::tokenizeBatch ));
+        threads.addAll( startStage( invert, tokenize2invert, invert2merge, this::invertBatch ));
+
+        // Merge the shards in batch order, buffering the ones that arrive early.
+        // A new batch is only handed to the readers when one has been merged,
+        // so at most window batches are between the reader and the merger,
+        // even when the shards after a slow batch wait for it here.
+        HashMap<Integer,Batch> early = new HashMap<Integer,Batch>();
+        int created = 0, next = 0;
+        boolean ended = false;
+        try {
+            while ( next < batches && failure.get() == null ) {
+                while ( created < batches && created - next < window ) {
+                    int start = created * Indexer.BATCH_SIZE;
+                    List<Indexer.Document> batch = docs.subList( start, Math.min( start + Indexer.BATCH_SIZE, docs.size() ));
+                    source.put( new Batch( created++, firstDocID + start, batch ));
+                }
+                if ( created == batches && !ended ) {
+                    source.put( END );
+                    ended = true;
+                }
+                Batch batch = invert2merge.poll( 100, TimeUnit.MILLISECONDS );
+                if ( batch == null || batch == END ) {
+                    continue;
+                }
+                early.put( batch.seq, batch );
+                while ( early.containsKey( next )) {
+                    indexer.mergeShard( early.remove( next ).shard );
+                    next++;
+                }
+            }
+            if ( !ended ) {
+                source.offer( END );
+            }
+        } catch ( InterruptedException e ) {
+            failure.compareAndSet( null, e );
+        }
+        Throwable e = failure.get();
+        if ( e != null ) {
+            for (Thread t : threads) {
+                t.interrupt();
+            }
+        }
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch ( InterruptedException ie ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if ( e instanceof IOException ) {
+            throw (IOException) e;
+        } else if ( e != null ) {
+            throw new IOException( "Exception during parallel indexing: " + e, e );
+        }
+
+        long elapsed = System.nanoTime() - startTime;
+        System.out.println( "Indexing pipeline:" );
+        System.out.println( read.report( elapsed ));
+        System.out.println( tokenize.report( elapsed ));
+        System.out.println( invert.report( elapsed ));
+    }
+
+
+    /** The work a stage does on one batch. */
+    private interface Work {
+        void process( Batch batch ) throws IOException;
+    }
+
+
+    /**
+     *  Starts the threads of a stage. When a thread sees the end marker, it
+     *  puts it back for its siblings, and the last thread of the stage to
+     *  finish passes it on to the next stage.
+     */
+    private List<Thread> startStage( Stage stage, BlockingQueue<Batch> in, BlockingQueue<Batch> out, Work work ) {
+        AtomicInteger running = new AtomicInteger( stage.threads );
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < stage.threads; i++) {
+            Thread t = new Thread( () -> {
+                try {
+                    while ( true ) {
+                        long t0 = System.nanoTime();
+                        Batch batch = in.take();
+                        long t1 = System.nanoTime();
+                        stage.inputWaitNanos.addAndGet( t1 - t0 );
+                        if ( batch == END ) {
+                            in.put( END );
+                            break;
+                        }
+                        work.process( batch );
+                        long t2 = System.nanoTime();
+                        stage.busyNanos.addAndGet( t2 - t1 );
+                        stage.docs.addAndGet( batch.docs.size() );
+                        out.put( batch );
+                        stage.outputWaitNanos.addAndGet( System.nanoTime() - t2 );
+                    }
+                    if ( running.decrementAndGet() == 0 ) {
+                        out.put( END );
+                    }
+                } catch ( InterruptedException e ) {
+                    // The pipeline has been aborted.
+                } catch ( Throwable e ) {
+                    failure.compareAndSet( null, e );
+                }
+            }, "indexer-" + stage.name + "-" + i );
+            t.setDaemon( true );
+            t.start();
+            threads.add( t );
+        }
+        return threads;
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Reads the contents of the documents of a batch into memory. A document
+     *  that cannot be read is skipped.
+     */
+    private void readBatch( Batch batch ) {
+        batch.texts = new String[batch.docs.size()];
+        char[] buf = new char[8192];
+        for (int i = 0; i < batch.docs.size(); i++) {
+            Indexer.Document doc = batch.docs.get( i );
+            try ( Reader reader = doc.open() ) {
+                StringBuilder text = new StringBuilder();
+                int n;
+                while (( n = reader.read( buf )) >= 0 ) {
+                    text.append( buf, 0, n );
+                }
+                batch.texts[i] = text.toString();
+                batch.shard.modified[i] = doc.modified();
+                batch.shard.checksums[i] = doc.checksum();
+            } catch ( IOException e ) {
+                System.err.println( "Warning: IOException during indexing." );
+            }
+        }
+    }
+
+
+    /**
+     *  Tokenizes the documents of a batch. The tokens are copied into one
+     *  array of characters for the whole batch rather than into Strings.
+     */
+    private void tokenizeBatch( Batch batch ) throws IOException {
+        char[] chars = new char[8192];
+        int[] ends = new int[1024];
+        int used = 0, tokens = 0;
+        batch.docEnds = new int[batch.docs.size()];
+        for (int i = 0; i < batch.docs.size(); i++) {
+            if ( batch.texts[i] == null ) {
+                batch.docEnds[i] = -1;
+                continue;
+            }
+            Tokenizer tok = Tokenizer.forThread( new StringReader( batch.texts[i] ), true, false, true, indexer.patterns_file );
+            while ( tok.next() ) {
+                int length = tok.termLength();
+                if ( used + length > chars.length ) {
+                    chars = Arrays.copyOf( chars, Math.max( 2 * chars.length, used + length ));
+                }
+                if ( tokens == ends.length ) {
+                    ends = Arrays.copyOf( ends, 2 * ends.length );
+                }
+                System.arraycopy( tok.termBuffer(), tok.termStart(), chars, used, length );
+                used += length;
+                ends[tokens++] = used;
+            }
+            batch.docEnds[i] = tokens;
+        }
+        batch.chars = chars;
+        batch.ends = ends;
+        batch.texts = null;
+    }
+
+
+    /**
+     *  Inverts the tokens of a batch into the shard of the batch. Every
+     *  document is inverted on its own first, so each of its terms is
+     *  inserted into the shard only once.
+     */
+    private void invertBatch( Batch batch ) {
+        Indexer.Shard shard = batch.shard;
+        DocumentInverter inverter = new DocumentInverter();
+        int token = 0, start = 0;
+        for (int i = 0; i < batch.docs.size(); i++) {
+            if ( batch.docEnds[i] < 0 ) {
+                continue;
+            }
+            for (; token < batch.docEnds[i]; token++) {
+                inverter.add( batch.chars, start, batch.ends[token] - start );
+                start = batch.ends[token];
+            }
+            shard.names[i] = batch.docs.get( i ).name;
+            shard.lengths[i] = inverter.length();
+            // The k-gram index is filled when the shard is merged.
+            inverter.flush( shard.firstDocID + i, shard.index, null );
+        }
+        batch.chars = null;
+        batch.ends = null;
+    }
+}
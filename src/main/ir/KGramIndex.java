@@ -14,11 +14,11 @@ import java.nio.charset.StandardCharsets;
 
 public class KGramIndex {
 
-    /** Mapping from term ids to actual term strings */
-    HashMap<Integer,String> id2term = new HashMap<>();
-
-    /** Mapping from term strings to term ids */
-    HashMap<String,Integer> term2id = new HashMap<>();
+    /**
+     *  The IDs of the terms in this index. The terms and their IDs are kept
+     *  in the dictionary shared with the inverted index.
+     */
+    BitSet termIDs = new BitSet();
 
     /** Index from k-grams to list of term ids that contain the k-gram */
     HashMap<String,List<KGramPostingsEntry>> index = new HashMap<>();
@@ -26,9 +26,6 @@ public class KGramIndex {
     /** The directory where the resources are located. */
     static final String RESOURCE_DIR = "src/main/resources/";
 
-    /** The ID of the last processed term */
-    int lastTermID = -1;
-
     /** Number of symbols to form a K-gram */
     int K;
 
@@ -40,11 +37,6 @@ public class KGramIndex {
         }
     }
 
-    /** Generate the ID for an unknown term */
-    private int generateTermID() {
-        return ++lastTermID;
-    }
-
     public int getK() {
         return K;
     }
@@ -78,16 +70,19 @@ public class KGramIndex {
 
     /** Inserts all k-grams from a token into the index. */
     public void insert( String token ) {
+        insert(Index.dictionary.add(token));
+    }
+
+    /** Inserts all k-grams from the term with the given ID into the index. */
+    public void insert( int termID ) {
         // YOUR CODE HERE
 
         // Return if index already contains the token
-        if (getIDByTerm(token) != null) {
+        if (termIDs.get(termID)) {
             return;
         }
-
-        int termID = generateTermID();
-        term2id.put(token, termID);
-        id2term.put(termID, token);
+        termIDs.set(termID);
+        String token = Index.dictionary.term(termID);
 
         Set<String> kGrams = new HashSet<>();
         String modifiedToken = "^" + token + "$";
@@ -95,11 +90,33 @@ public class KGramIndex {
             String kGram = modifiedToken.substring(i, i + K);
             if (!kGrams.contains(kGram)) {
                 kGrams.add(kGram);
-                index.computeIfAbsent(kGram, k -> new ArrayList<>()).add(new KGramPostingsEntry(termID));
+                addPosting(index.computeIfAbsent(kGram, k -> new ArrayList<>()), termID);
             }
         }
     }
 
+    /**
+     *  Adds a term ID to a postings list, which is kept sorted by term ID for
+     *  the intersection. Term IDs are given out in increasing order, but the
+     *  terms may be inserted in another order when several threads index.
+     */
+    private static void addPosting(List<KGramPostingsEntry> postings, int termID) {
+        int n = postings.size();
+        if (n == 0 || postings.get(n - 1).tokenID < termID) {
+            postings.add(new KGramPostingsEntry(termID));
+            return;
+        }
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (postings.get(mid).tokenID < termID)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        postings.add(lo, new KGramPostingsEntry(termID));
+    }
+
     /** Get postings for the given k-gram */
     public List<KGramPostingsEntry> getPostings(String kGram) {
         return index.getOrDefault(kGram, null);
@@ -107,12 +124,13 @@ public class KGramIndex {
 
     /** Get id of a term */
     public Integer getIDByTerm(String term) {
-        return term2id.get(term);
+        int termID = Index.dictionary.lookup(term);
+        return termID >= 0 && termIDs.get(termID) ? termID : null;
     }
 
     /** Get a term by the given id */
     public String getTermByID(Integer id) {
-        return id2term.get(id);
+        return id != null && termIDs.get(id) ? Index.dictionary.term(id) : null;
     }
 
     private static HashMap<String,String> decodeArgs( String[] args ) {
@@ -187,7 +205,7 @@ public class KGramIndex {
 
         File f = new File(args.get("file"));
         Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
-        Tokenizer tok = new Tokenizer( reader, true, false, true, args.get("patterns_file") );
+        Tokenizer tok = Tokenizer.forThread( reader, true, false, true, args.get("patterns_file") );
         while ( tok.hasMoreTokens() ) {
             String token = tok.nextToken();
             kgIndex.insert(token);
@@ -0,0 +1,113 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+
+/**
+ *   A read-only view of a file through memory-mapped buffers, from which
+ *   byte ranges are read without a system call or a copy.
+ *
+ *   A MappedByteBuffer holds at most 2 GB, so the file is mapped in chunks
+ *   of 2^chunkBits bytes. A range that lies in one chunk is returned as a
+ *   view of the mapped chunk; the rare range that crosses the end of a
+ *   chunk is copied.
+ *
+ *   The file may grow while it is mapped: a read past the mapped part maps
+ *   the rest of the file. Every read returns a buffer of its own, so the
+ *   file can be read by several threads at once.
+ */
+class MappedFile {
+
+    /** The number of bits of the offset within a chunk, for chunks of 1 GB. */
+    static final int CHUNK_BITS = 30;
+
+    private final FileChannel channel;
+    private final int chunkBits;
+    private final long chunkSize;
+
+    /** The mapped chunks; all but the last one are chunkSize bytes long. */
+    private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+
+    /** The number of bytes mapped. */
+    private volatile long length = 0L;
+
+
+    MappedFile( FileChannel channel ) {
+        this( channel, CHUNK_BITS );
+    }
+
+
+    MappedFile( FileChannel channel, int chunkBits ) {
+        this.channel = channel;
+        this.chunkBits = chunkBits;
+        this.chunkSize = 1L << chunkBits;
+    }
+
+
+    /**
+     *  Returns a buffer of the given number of bytes at the offset, or null
+     *  if they are not all in the file.
+     */
+    ByteBuffer read( long offset, int size ) throws IOException {
+        if (offset < 0 || size < 0) {
+            return null;
+        }
+        if (size == 0) {
+            return ByteBuffer.allocate( 0 );
+        }
+        if (offset + size > length) {
+            map();
+            if (offset + size > length) {
+                return null;
+            }
+        }
+        MappedByteBuffer[] chunks = this.chunks;
+        int chunk = (int) (offset >>> chunkBits);
+        int start = (int) (offset & (chunkSize - 1));
+        if (start + (long) size <= chunkSize) {
+            ByteBuffer buffer = chunks[chunk].duplicate();
+            buffer.position( start ).limit( start + size );
+            return buffer.slice();
+        }
+        // The range crosses the end of a chunk.
+        byte[] data = new byte[size];
+        int copied = 0;
+        while (copied < size) {
+            ByteBuffer buffer = chunks[chunk++].duplicate();
+            buffer.position( start );
+            int n = Math.min( size - copied, buffer.remaining() );
+            buffer.get( data, copied, n );
+            copied += n;
+            start = 0;
+        }
+        return ByteBuffer.wrap( data );
+    }
+
+
+    /** Maps the part of the file that has been written since it was last mapped. */
+    private synchronized void map() throws IOException {
+        long size = channel.size();
+        if (size <= length) {
+            return;
+        }
+        // The last chunk is mapped again if it was not full.
+        int full = (int) (length >>> chunkBits);
+        int n = (int) ((size + chunkSize - 1) >>> chunkBits);
+        MappedByteBuffer[] chunks = Arrays.copyOf( this.chunks, n );
+        for (int i = full; i < n; i++) {
+            long start = (long) i << chunkBits;
+            chunks[i] = channel.map( FileChannel.MapMode.READ_ONLY, start, Math.min( chunkSize, size - start ));
+        }
+        this.chunks = chunks;
+        this.length = size;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+
+/**
+ *   A minimal perfect hash function over a set of distinct 64-bit keys:
+ *   it maps the n keys of the set to the numbers 0 to n-1, one each. It is
+ *   built in the manner of BBHash.
+ *
+ *   Every key is hashed to a bit of the first level, a bit array of
+ *   @code{GAMMA} bits per key. The bits that exactly one key is hashed to
+ *   are set, and those keys are placed; the keys that collide are hashed
+ *   again, with another hash function, to the next level, which is sized
+ *   for them alone. The number of a key is the number of set bits before
+ *   its bit in all levels, which is counted with a table of the number of
+ *   set bits before every block of @code{RANK_WORDS} words.
+ *
+ *   The levels take about 3.3 bits per key, and the rank table another
+ *   sixteenth of that. A key that is not in the set is mapped to the
+ *   number of some key, or to -1, so the caller has to check that it found
+ *   the key it was looking for.
+ */
+class PerfectHash {
+
+    /** The number of bits of a level per key to be placed in it. */
+    static final double GAMMA = 2.0;
+
+    /** The keys that collide in this many levels are taken to be duplicates. */
+    static final int MAX_LEVELS = 64;
+
+    /** The number of words per entry of the rank table. */
+    private static final int RANK_WORDS = 8;
+
+    /** The bit arrays of the levels, one after the other. */
+    private final long[] bits;
+
+    /** The word at which each level starts, and the end of the last one. */
+    private final int[] levelStarts;
+
+    /** The number of set bits before every block of RANK_WORDS words. */
+    private final int[] ranks;
+
+    /** The number of keys. */
+    private final int size;
+
+
+    private PerfectHash( long[] bits, int[] levelStarts ) {
+        this.bits = bits;
+        this.levelStarts = levelStarts;
+        this.ranks = new int[(bits.length + RANK_WORDS - 1) / RANK_WORDS];
+        int rank = 0;
+        for (int i = 0; i < bits.length; i++) {
+            if (i % RANK_WORDS == 0) {
+                ranks[i / RANK_WORDS] = rank;
+            }
+            rank += Long.bitCount( bits[i] );
+        }
+        this.size = rank;
+    }
+
+
+    /**
+     *  Builds a minimal perfect hash function over a set of keys.
+     *
+     *  @throws IllegalArgumentException if the keys are not distinct
+     */
+    static PerfectHash build( long[] keys ) {
+        long[] remaining = keys.clone();
+        int n = remaining.length;
+        ArrayList<long[]> levels = new ArrayList<long[]>();
+        while (n > 0) {
+            if (levels.size() == MAX_LEVELS) {
+                throw new IllegalArgumentException( n + " keys could not be placed; the keys are not distinct." );
+            }
+            int level = levels.size();
+            long[] placed = new long[(int) Math.max( 1L, (long) Math.ceil( GAMMA * n / 64 ))];
+            long[] collided = new long[placed.length];
+            long length = 64L * placed.length;
+            for (int i = 0; i < n; i++) {
+                long bit = position( remaining[i], level, length );
+                int word = (int) (bit >>> 6);
+                if ((placed[word] & (1L << bit)) != 0) {
+                    collided[word] |= 1L << bit;
+                }
+                placed[word] |= 1L << bit;
+            }
+            for (int i = 0; i < placed.length; i++) {
+                placed[i] &= ~collided[i];
+            }
+            // The keys that collided are placed in the next level.
+            int m = 0;
+            for (int i = 0; i < n; i++) {
+                long bit = position( remaining[i], level, length );
+                if ((collided[(int) (bit >>> 6)] & (1L << bit)) != 0) {
+                    remaining[m++] = remaining[i];
+                }
+            }
+            n = m;
+            levels.add( placed );
+        }
+        int[] levelStarts = new int[levels.size() + 1];
+        for (int i = 0; i < levels.size(); i++) {
+            levelStarts[i + 1] = levelStarts[i] + levels.get( i ).length;
+        }
+        long[] bits = new long[levelStarts[levels.size()]];
+        for (int i = 0; i < levels.size(); i++) {
+            System.arraycopy( levels.get( i ), 0, bits, levelStarts[i], levels.get( i ).length );
+        }
+        return new PerfectHash( bits, levelStarts );
+    }
+
+
+    /** Returns the number of a key of the set, or -1 or the number of another key. */
+    int lookup( long key ) {
+        for (int level = 0; level + 1 < levelStarts.length; level++) {
+            int start = levelStarts[level];
+            long bit = position( key, level, 64L * (levelStarts[level + 1] - start) );
+            int word = start + (int) (bit >>> 6);
+            if ((bits[word] & (1L << bit)) != 0) {
+                return rank( word, (int) (bit & 63) );
+            }
+        }
+        return -1;
+    }
+
+
+    /** Returns the number of keys. */
+    int size() {
+        return size;
+    }
+
+
+    /** Returns the number of bytes written by write(). */
+    int byteSize() {
+        return 4 + 4 * (levelStarts.length - 1) + 8 * bits.length;
+    }
+
+
+    /** Writes the levels at the position of the buffer. */
+    void write( ByteBuffer buffer ) {
+        buffer.putInt( levelStarts.length - 1 );
+        for (int level = 0; level + 1 < levelStarts.length; level++) {
+            buffer.putInt( levelStarts[level + 1] - levelStarts[level] );
+        }
+        for (long word : bits) {
+            buffer.putLong( word );
+        }
+    }
+
+
+    /** Reads a function written by write() from the position of the buffer. */
+    static PerfectHash read( ByteBuffer buffer ) {
+        int[] levelStarts = new int[buffer.getInt() + 1];
+        for (int level = 0; level + 1 < levelStarts.length; level++) {
+            levelStarts[level + 1] = levelStarts[level] + buffer.getInt();
+        }
+        long[] bits = new long[levelStarts[levelStarts.length - 1]];
+        buffer.asLongBuffer().get( bits );
+        buffer.position( buffer.position() + 8 * bits.length );
+        return new PerfectHash( bits, levelStarts );
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /** Returns the number of set bits before a bit of a word. */
+    private int rank( int word, int bit ) {
+        int rank = ranks[word / RANK_WORDS];
+        for (int i = word - word % RANK_WORDS; i < word; i++) {
+            rank += Long.bitCount( bits[i] );
+        }
+        return rank + Long.bitCount( bits[word] & ((1L << bit) - 1) );
+    }
+
+
+    /**
+     *  Returns the bit of a key in a level of the given number of bits,
+     *  which is less than 2^32. The key is mixed with the number of the
+     *  level by the finaliser of MurmurHash3, and its high 32 bits are
+     *  mapped to the range by a multiplication instead of a division.
+     */
+    private static long position( long key, int level, long length ) {
+        long h = key + (level + 1) * 0x9e3779b97f4a7c15L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return ((h >>> 32) * length) >>> 32;
+    }
+}
@@ -9,7 +9,11 @@ package ir;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.function.BiConsumer;
 
 
 /*
@@ -17,11 +21,37 @@ import java.util.*;
  *   
  *   Both the words (the dictionary) and the data (the postings list) are
  *   stored in RandomAccessFiles that permit fast (almost constant-time)
- *   disk seeks. 
+ *   disk seeks. They are written through the RandomAccessFiles, and read
+ *   through memory maps of the files (see @code{MappedFile}).
+ *
+ *   The dictionary file is a hash table with open addressing and linear
+ *   probing. Its first slot holds the number of slots, a power of two
+ *   that is doubled to keep the table at most half full, and the number
+ *   of terms. Every other slot holds the 64-bit hash of its term as a
+ *   fingerprint, and the place of the term in the data file, where the
+ *   term is stored in UTF-8 before its postings list. A lookup compares
+ *   fingerprints while probing, and verifies the term itself before it
+ *   accepts a slot, so no part of the dictionary is kept in memory.
+ *
+ *   Once the index is committed, buildPerfectHash() can replace the hash
+ *   table with a table of one slot per term, addressed by a minimal
+ *   perfect hash function of the fingerprints (see @code{PerfectHash}),
+ *   which is stored after the table and kept in memory at a few bits per
+ *   term. A lookup then reads a single slot.
+ *
+ *   The terms are also written in sorted order to the terms file (see
+ *   @code{SortedTermDictionary}), from which the terms with a prefix or in
+ *   a range are read in order. The postings are written to the data file
+ *   in the same order.
  *
  *   When words are read and indexed, they are first put in an ordinary,
  *   main-memory HashMap. When all words are read, the index is committed
  *   to disk.
+ *
+ *   If the main-memory HashMap grows beyond a heap budget, it is sorted
+ *   by term and spilled to a temporary run file (single-pass in-memory
+ *   indexing). The runs are k-way merged into the dictionary and data
+ *   files when the index is committed.
  */
 public class PersistentHashedIndex implements Index {
 
@@ -40,12 +70,35 @@ public class PersistentHashedIndex implements Index {
     /** The doc info file name */
     public static final String DOCINFO_FNAME = "docInfo";
 
-    /** The dictionary hash table on disk can fit this many entries. */
-    public static final int TABLESIZE = 611953;
-    static int HASHSIZE = 305947;
+    /** The prefix of the temporary run files written during block indexing */
+    public static final String RUN_FNAME = "run";
+
+    /** The default heap budget of the main-memory block, in bytes. */
+    public static final long DEFAULT_BLOCK_BUDGET = Runtime.getRuntime().maxMemory() / 4;
+
+    /**
+     *  Estimated heap usage of a new term in a block, a new posting and a
+     *  position.
+     */
+    static final int TERM_BYTES = 64, POSTING_BYTES = 64, POSITION_BYTES = 4;
+
+    /**
+     *  Estimated heap usage of a term in the shared dictionary, besides one
+     *  byte per character: its String and the dictionary's slots for it.
+     */
+    static final int DICTIONARY_TERM_BYTES = 64;
+
+    /** The number of slots of a new dictionary hash table. */
+    public static final int INITIAL_SLOTS = 1024;
 
     /** The size of an entry */
-    public static final int ENTRYSIZE = 12;  // 12-byte = 96-bit
+    public static final int ENTRYSIZE = 24;  // 24-byte = 192-bit
+
+    /** The directory where the files of this index are stored. */
+    final String indexDir;
+
+    /** Only documents with at least this docID belong to this index and are written to docInfo. */
+    int firstDocID = 0;
 
     /** The dictionary hash table is stored in this file. */
     RandomAccessFile dictionaryFile;
@@ -53,14 +106,59 @@ public class PersistentHashedIndex implements Index {
     /** The data (the PostingsLists) are stored in this file. */
     RandomAccessFile dataFile;
 
+    /** The sorted terms are stored in this file. */
+    RandomAccessFile termsFile;
+
+    /** The dictionary, data and terms files are read through these maps. */
+    MappedFile dictionaryMap, dataMap, termsMap;
+
+    /** The sorted terms of the committed index, or null if there are none. */
+    SortedTermDictionary sortedTerms = null;
+
     /** Pointer to the first free memory cell in the data file. */
     long free = 0L;
 
-    /** The cache as a main-memory hash map. */
-    HashMap<String,PostingsList> index = new HashMap<String,PostingsList>();
+    /** The main-memory block, as a table addressed by term ID. */
+    PostingsTable index = new PostingsTable();
+
+    /** The bitmaps of the common terms, built when they are first asked for. */
+    private final BitmapTable bitmaps = new BitmapTable();
 
-    // A dictionary that records collisions
-    HashMap<String, Integer> cDict = new HashMap<String, Integer>();
+    /** Number of slots of the dictionary hash table, or 0 if there is none. */
+    long dictionarySlots = 0L;
+
+    /** Number of terms in the dictionary hash table. */
+    long dictionaryTerms = 0L;
+
+    /**
+     *  The function that maps each term to its slot, if the dictionary has
+     *  one slot per term, or null if it is a hash table with linear probing.
+     */
+    PerfectHash perfectHash = null;
+
+    /** Number of terms that are not in the first slot they probe. */
+    long collisions = 0;
+
+    /** Number of postings and of positions written to the data file. */
+    long postingsWritten = 0L, positionsWritten = 0L;
+
+    /** Number of bytes written to the data file before the positions of each list. */
+    long docsWritten = 0L;
+
+    /** The main-memory block is spilled to disk when its estimated size exceeds this. */
+    long blockBudget;
+
+    /** Estimated heap usage of the main-memory block, in bytes. */
+    long blockBytes = 0L;
+
+    /** Number of run files spilled to disk so far. */
+    int runs = 0;
+
+    /** Number of terms of the shared dictionary whose size has been counted in a block. */
+    private int countedTerms = dictionary.size();
+
+    /** Number of unique terms written by the merge of the runs, or -1 before the merge. */
+    int mergedTerms = -1;
 
     // ===================================================================
 
@@ -69,12 +167,20 @@ public class PersistentHashedIndex implements Index {
      */ 
     public static class Entry {
         // YOUR CODE HERE
+        /** The hash of the term, or 0 in an empty slot and in the terms file. */
+        public long fingerprint = 0L;
+
         public long begin = 0L;
         public int size = 0;
 
-        public Entry(long begin, int size) {
+        /** The number of bytes of the postings that precede their positions. */
+        public int docsSize = 0;
+
+        public Entry(long fingerprint, long begin, int size, int docsSize) {
+            this.fingerprint = fingerprint;
             this.begin = begin;
             this.size = size;
+            this.docsSize = docsSize;
         }
     }
 
@@ -82,21 +188,95 @@ public class PersistentHashedIndex implements Index {
     // ==================================================================
 
     
+    /**
+     *   Reads the sorted runs spilled during block indexing, one term at a time.
+     */
+    private static class RunReader {
+        final DataInputStream in;
+        final int run;
+        String term;
+        PostingsList postings;
+
+        RunReader( File file, int run ) throws IOException {
+            this.in = new DataInputStream( new BufferedInputStream( new FileInputStream( file )));
+            this.run = run;
+        }
+
+        /** Reads the next term and its postings, or returns false at the end of the run. */
+        boolean advance() throws IOException {
+            int length;
+            try {
+                length = in.readInt();
+            } catch ( EOFException e ) {
+                term = null;
+                postings = null;
+                in.close();
+                return false;
+            }
+            byte[] data = new byte[length];
+            in.readFully( data );
+            term = new String( data, StandardCharsets.UTF_8 );
+            data = new byte[in.readInt()];
+            in.readFully( data );
+            postings = PostingsCodec.decode( ByteBuffer.wrap( data ));
+            return true;
+        }
+    }
+
+
+    // ==================================================================
+
+
     /**
      *  Constructor. Opens the dictionary file and the data file.
      *  If these files don't exist, they will be created. 
      */
     public PersistentHashedIndex() {
+        this( DEFAULT_BLOCK_BUDGET );
+    }
+
+    /**
+     *  Constructor. Opens the dictionary file and the data file, and spills
+     *  the main-memory index to disk whenever it exceeds the given budget.
+     */
+    public PersistentHashedIndex( long blockBudget ) {
+        this( INDEXDIR, blockBudget );
+    }
+
+    /**
+     *  Constructor. Opens (or creates) an index stored in the given directory.
+     */
+    public PersistentHashedIndex( String indexDir, long blockBudget ) {
+        this( indexDir, blockBudget, true );
+    }
+
+    /**
+     *  Constructor. Opens (or creates) an index stored in the given
+     *  directory. Unless @code{expectDocInfo} is set, a directory without a
+     *  docInfo file holds a new index, which is not reported as an error.
+     */
+    PersistentHashedIndex( String indexDir, long blockBudget, boolean expectDocInfo ) {
+        this.indexDir = indexDir;
+        this.blockBudget = blockBudget;
+        new File( indexDir ).mkdirs();
         try {
-            dictionaryFile = new RandomAccessFile( INDEXDIR + "/" + DICTIONARY_FNAME, "rw" );
-            dataFile = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME, "rw" );
+            dictionaryFile = new RandomAccessFile( indexDir + "/" + DICTIONARY_FNAME, "rw" );
+            dataFile = new RandomAccessFile( indexDir + "/" + DATA_FNAME, "rw" );
+            termsFile = new RandomAccessFile( indexDir + "/" + TERMS_FNAME, "rw" );
+            dictionaryMap = new MappedFile( dictionaryFile.getChannel() );
+            dataMap = new MappedFile( dataFile.getChannel() );
+            termsMap = new MappedFile( termsFile.getChannel() );
+            readDictionaryHeader();
+            sortedTerms = SortedTermDictionary.read( termsMap );
         } catch ( IOException e ) {
             System.err.println("An error occurred: " + e.getMessage());
         }
 
+        if (!expectDocInfo && !new File( indexDir, DOCINFO_FNAME ).exists()) {
+            return;
+        }
         try {
             readDocInfo();
-            readCollisions();
         } catch ( FileNotFoundException e ) {
             System.err.println("ERROR: FileNotFound!");
             String errMessage = e.getMessage();
@@ -115,12 +295,12 @@ public class PersistentHashedIndex implements Index {
      *
      *  @return The number of bytes written.
      */ 
-    int writeData( String dataString, long ptr ) {
+    int writeData( ByteBuffer data, long ptr ) {
         try {
             dataFile.seek( ptr ); 
-            byte[] data = dataString.getBytes();
-            dataFile.write( data );
-            return data.length;
+            int size = data.remaining();
+            dataFile.write( data.array(), data.arrayOffset() + data.position(), size );
+            return size;
         } catch ( IOException e ) {
             System.err.println("An error occurred: " + e.getMessage());
             return -1;
@@ -129,14 +309,12 @@ public class PersistentHashedIndex implements Index {
 
 
     /**
-     *  Reads data from the data file
+     *  Reads data from the data file, as a view of its memory map. Returns
+     *  null if the data are not all in the file.
      */ 
-    String readData( long ptr, int size ) {
+    ByteBuffer readData( long ptr, int size ) {
         try {
-            dataFile.seek( ptr );
-            byte[] data = new byte[size];
-            dataFile.readFully( data );
-            return new String(data);
+            return dataMap.read( ptr, size );
         } catch ( IOException e ) {
             System.err.println("An error occurred: " + e.getMessage());
             return null;
@@ -152,17 +330,19 @@ public class PersistentHashedIndex implements Index {
      *  Writes an entry to the dictionary hash table file.
      *
      *  @param entry The key of this entry is assumed to have a fixed length
-     *  @param ptr   The place in the dictionary file to store the entry
+     *  @param ptr   The slot in the dictionary file to store the entry
      */
     void writeEntry( Entry entry, long ptr ) {
         // YOUR CODE HERE
         // Create a ByteBuffer with the required size
-        ptr = ptr * ENTRYSIZE;
+        ptr = (ptr + 1) * ENTRYSIZE;  // after the header
         ByteBuffer buffer = ByteBuffer.allocate(ENTRYSIZE);
 
         // Write the entry data to the buffer
+        buffer.putLong(entry.fingerprint);
         buffer.putLong(entry.begin);
         buffer.putInt(entry.size);
+        buffer.putInt(entry.docsSize);
 
         // Reset the buffer's position to zero
         buffer.flip();
@@ -178,20 +358,19 @@ public class PersistentHashedIndex implements Index {
     /**
      *  Reads an entry from the dictionary file.
      *
-     *  @param ptr The place in the dictionary file where to start reading.
+     *  @param ptr The slot in the dictionary file where to start reading.
      */
     Entry readEntry( long ptr ) {
         // REPLACE THE STATEMENT BELOW WITH YOUR CODE
-        ptr = ptr * ENTRYSIZE;
-        byte[] data = new byte[ENTRYSIZE];
-        ByteBuffer buffer = ByteBuffer.allocate(ENTRYSIZE);
+        ptr = (ptr + 1) * ENTRYSIZE;  // after the header
 
         try {
-            dictionaryFile.seek(ptr);
-            dictionaryFile.readFully(data);
-            buffer.put(data, 0, data.length);
-            buffer.flip();
-            return new Entry(buffer.getLong(), buffer.getInt());
+            ByteBuffer buffer = dictionaryMap.read(ptr, ENTRYSIZE);
+            // The entry lies beyond the part of the table written so far.
+            if (buffer == null) {
+                return null;
+            }
+            return new Entry(buffer.getLong(), buffer.getLong(), buffer.getInt(), buffer.getInt());
 
         } catch (IOException e) {
             System.err.println("An error occurred: " + e.getMessage());
@@ -200,6 +379,212 @@ public class PersistentHashedIndex implements Index {
     }
 
 
+    /**
+     *  Returns the 64-bit hash of a term: FNV-1a over its characters,
+     *  followed by the finaliser of MurmurHash3, so that both its low bits
+     *  (the home slot) and the whole of it (the fingerprint) are well mixed.
+     */
+    static long hash( String token ) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < token.length(); i++) {
+            h ^= token.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+
+    /**
+     *  Starts an empty dictionary hash table, large enough for the expected
+     *  number of terms at a load factor of at most 1/2.
+     */
+    void createDictionary( long expectedTerms ) {
+        long slots = INITIAL_SLOTS;
+        while (slots < 2 * expectedTerms) {
+            slots *= 2;
+        }
+        perfectHash = null;
+        clearDictionary(slots);
+        collisions = 0;
+    }
+
+
+    /**
+     *  Empties the dictionary file for a table of the given number of slots.
+     *  The file is overwritten rather than truncated, since it is mapped.
+     */
+    private void clearDictionary( long slots ) {
+        dictionarySlots = slots;
+        dictionaryTerms = 0L;
+        byte[] zeros = new byte[ENTRYSIZE * 4096];
+        try {
+            long end = (slots + 1) * ENTRYSIZE;
+            dictionaryFile.seek(0L);
+            for (long ptr = 0L; ptr < end; ptr += zeros.length) {
+                dictionaryFile.write(zeros, 0, (int) Math.min(zeros.length, end - ptr));
+            }
+        } catch (IOException e) {
+            System.err.println("An error occurred: " + e.getMessage());
+        }
+        writeDictionaryHeader();
+    }
+
+
+    /**
+     *  Doubles the dictionary hash table, and inserts its entries again.
+     */
+    private void growDictionary() {
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        for (long slot = 0; slot < dictionarySlots; slot++) {
+            Entry entry = readEntry(slot);
+            if (entry != null && entry.size > 0) {
+                entries.add(entry);
+            }
+        }
+        clearDictionary(2 * dictionarySlots);
+        collisions = 0;
+        for (Entry entry : entries) {
+            insertEntry(entry);
+        }
+    }
+
+
+    /**
+     *  Writes an entry to the first empty slot from the home slot of its
+     *  fingerprint on. The table must have an empty slot.
+     */
+    private void insertEntry( Entry entry ) {
+        long mask = dictionarySlots - 1;
+        long slot = entry.fingerprint & mask;
+        Entry occupant = readEntry(slot);
+        if (occupant != null && occupant.size > 0) {
+            collisions++;
+            // Linear probing to find an empty slot.
+            do {
+                slot = (slot + 1) & mask;
+                occupant = readEntry(slot);
+            } while (occupant != null && occupant.size > 0);
+        }
+        writeEntry(entry, slot);
+        dictionaryTerms++;
+    }
+
+
+    /**
+     *  Writes the number of slots and terms of the dictionary to its first
+     *  slot, and the size of its perfect hash function, which is 0 for a
+     *  hash table with linear probing.
+     */
+    void writeDictionaryHeader() {
+        ByteBuffer buffer = ByteBuffer.allocate(ENTRYSIZE);
+        buffer.putLong(dictionarySlots);
+        buffer.putLong(dictionaryTerms);
+        buffer.putLong(perfectHash == null ? 0 : perfectHash.byteSize());
+        try {
+            dictionaryFile.seek(0L);
+            dictionaryFile.write(buffer.array());
+        } catch (IOException e) {
+            System.err.println("An error occurred: " + e.getMessage());
+        }
+    }
+
+
+    /**
+     *  Reads the number of slots and terms of the dictionary, if there is
+     *  one, and its perfect hash function, if it has one.
+     */
+    private void readDictionaryHeader() throws IOException {
+        ByteBuffer buffer = dictionaryMap.read(0L, ENTRYSIZE);
+        if (buffer != null) {
+            dictionarySlots = buffer.getLong();
+            dictionaryTerms = buffer.getLong();
+            int perfectHashSize = (int) buffer.getLong();
+            if (perfectHashSize > 0) {
+                buffer = dictionaryMap.read((dictionarySlots + 1) * ENTRYSIZE, perfectHashSize);
+                perfectHash = buffer == null ? null : PerfectHash.read(buffer);
+            }
+        }
+    }
+
+
+    /**
+     *  Replaces the dictionary hash table of a committed index with a table
+     *  of one slot per term, followed by a minimal perfect hash function
+     *  that maps the fingerprint of each term to its slot. The dictionary
+     *  file is replaced, so this must be done before the index is opened.
+     */
+    public static void buildPerfectHash( String indexDir ) {
+        File file = new File( indexDir, DICTIONARY_FNAME );
+        File temp = new File( indexDir, DICTIONARY_FNAME + ".tmp" );
+        long fileSize = file.length();
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file )))) {
+            long slots = in.readLong();
+            in.readLong();
+            if (in.readLong() > 0) {
+                System.err.println( "The dictionary already has a perfect hash function." );
+                return;
+            }
+            for (long slot = 0; slot < slots; slot++) {
+                Entry entry = new Entry( in.readLong(), in.readLong(), in.readInt(), in.readInt() );
+                if (entry.size > 0) {
+                    entries.add( entry );
+                }
+            }
+        } catch ( IOException e ) {
+            System.err.println("An error occurred: " + e.getMessage());
+            return;
+        }
+
+        long[] keys = new long[entries.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = entries.get( i ).fingerprint;
+        }
+        PerfectHash perfectHash;
+        try {
+            perfectHash = PerfectHash.build( keys );
+        } catch ( IllegalArgumentException e ) {
+            // Two terms have the same fingerprint; the hash table is kept.
+            System.err.println("An error occurred: " + e.getMessage());
+            return;
+        }
+        Entry[] table = new Entry[keys.length];
+        for (Entry entry : entries) {
+            table[perfectHash.lookup( entry.fingerprint )] = entry;
+        }
+        ByteBuffer header = ByteBuffer.allocate( ENTRYSIZE );
+        header.putLong( table.length );
+        header.putLong( table.length );
+        header.putLong( perfectHash.byteSize() );
+        ByteBuffer function = ByteBuffer.allocate( perfectHash.byteSize() );
+        perfectHash.write( function );
+        try {
+            try ( DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream( new FileOutputStream( temp )))) {
+                out.write( header.array() );
+                for (Entry entry : table) {
+                    out.writeLong( entry.fingerprint );
+                    out.writeLong( entry.begin );
+                    out.writeInt( entry.size );
+                    out.writeInt( entry.docsSize );
+                }
+                out.write( function.array() );
+            }
+            Files.move( temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+        } catch ( IOException e ) {
+            System.err.println("An error occurred: " + e.getMessage());
+            return;
+        }
+        System.err.println( String.format( "Perfect hash of %d terms in %.2f bits/term; dictionary of %d bytes, was %d bytes.",
+                table.length, 8.0 * perfectHash.byteSize() / Math.max( 1, table.length ), file.length(), fileSize ));
+    }
+
+
     // ==================================================================
 
     /**
@@ -208,11 +593,17 @@ public class PersistentHashedIndex implements Index {
      * @throws IOException  { exception_description }
      */
     private void writeDocInfo() throws IOException {
-        FileOutputStream fout = new FileOutputStream( INDEXDIR + "/docInfo" );
+        FileOutputStream fout = new FileOutputStream( indexDir + "/" + DOCINFO_FNAME );
         for ( Map.Entry<Integer,String> entry : docNames.entrySet() ) {
             Integer key = entry.getKey();
+            if (key < firstDocID) {
+                continue;
+            }
             String docInfoEntry = key + ";" + entry.getValue() + ";"
-                    + docLengths.get(key) + ";" + docEucLengths.get(key) + "\n";
+                    + docLengths.get(key) + ";" + docEucLengths.get(key) + ";"
+                    + docLogEucLengths.get(key) + ";"
+                    + docModified.getOrDefault(key, 0L) + ";"
+                    + docChecksums.getOrDefault(key, 0L) + "\n";
             fout.write( docInfoEntry.getBytes() );
         }
         fout.close();
@@ -226,7 +617,7 @@ public class PersistentHashedIndex implements Index {
      * @throws     IOException  { exception_description }
      */
     private void readDocInfo() throws IOException {
-        File file = new File( INDEXDIR + "/docInfo" );
+        File file = new File( indexDir + "/" + DOCINFO_FNAME );
         FileReader freader = new FileReader(file);
         try ( BufferedReader br = new BufferedReader(freader) ) {
             String line;
@@ -235,6 +626,14 @@ public class PersistentHashedIndex implements Index {
                 docNames.put( Integer.valueOf(data[0]), data[1] );
                 docLengths.put( Integer.valueOf(data[0]), Integer.valueOf(data[2]) );
                 docEucLengths.put( Integer.valueOf(data[0]), Double.valueOf(data[3]) );
+                // Indexes written before log-tf lengths were stored lack the last column.
+                if (data.length > 4) {
+                    docLogEucLengths.put( Integer.valueOf(data[0]), Double.valueOf(data[4]) );
+                }
+                if (data.length > 6) {
+                    docModified.put( Integer.valueOf(data[0]), Long.valueOf(data[5]) );
+                    docChecksums.put( Integer.valueOf(data[0]), Long.valueOf(data[6]) );
+                }
             }
         }
         freader.close();
@@ -245,82 +644,377 @@ public class PersistentHashedIndex implements Index {
      *  Write the index to files.
      */
     public void writeIndex() {
-        int collisions = 0;
-        // A dictionary that records collision keys
-        HashMap<Integer, Long> kDict = new HashMap<Integer, Long>();
         try {
             // Write the 'docNames' and 'docLengths' hash maps to a file
             writeDocInfo();
 
             // YOUR CODE HERE
-            // Write the dictionary and the postings list
-            for (Map.Entry<String, PostingsList> entry : index.entrySet()) {
-                String token = entry.getKey();
-                int hash = Objects.hash(token) % HASHSIZE + HASHSIZE;  // in case it's negative
-                // System.out.print(hash + "\n"); [1, 611952]
-                int size = writeData(entry.getValue().toString(), free);
-
-                // Solution: Open Addressing to solve collisions
-                // Other solutions include rehashing and separate chaining.
-                boolean collide = false;
-                while (true) {
-                    if (kDict.containsKey(hash)) {
-                        if (!collide) {
-                            collisions++;
-                            collide = true;
-                        }
-                        hash++;  // Linear probing to detect empty address.
-                        if (hash == HASHSIZE - 1) {
-                            hash = 1;  // Reset to 1 if it reaches the end.
-                        }
-                    }
-                    else {
-                        kDict.put(hash, free);
-                        if (collide) {
-                            cDict.put(token, hash);
-                        }
-                        break;
-                    }
-                }
-                writeEntry(new Entry(free, size), hash);
-                free += size;
+            // Write the dictionary and the postings list, in term order
+            createDictionary(index.size());
+            SortedTermDictionary.Writer terms = new SortedTermDictionary.Writer(termsFile);
+            for (int termID : sortedTermIDs()) {
+                String term = dictionary.term(termID);
+                terms.add(term, writePostings(term, index.get(termID)));
             }
-            System.err.println( collisions + " collisions." );  // 35828 in this case.
-            writeCollisions();
+            terms.finish();
+            sortedTerms = SortedTermDictionary.read(termsMap);
+            writeDictionaryHeader();
+            System.err.println( collisions + " collisions in " + dictionarySlots + " slots." );
+            printDataSize();
         } catch ( IOException e ) {
             System.err.println("An error occurred: " + e.getMessage());
         }
     }
 
 
+    /**
+     *  Writes a term and its postings list to the data file, and its entry
+     *  to the dictionary file, and returns the entry. The dictionary is
+     *  doubled when it would become more than half full.
+     */
+    Entry writePostings( String token, PostingsList postings ) {
+        byte[] key = token.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer data = ByteBuffer.allocate(PostingsCodec.MAX_VBYTE_LENGTH + key.length
+                + PostingsCodec.maxEncodedSize(postings));
+        PostingsCodec.writeVByte(data, key.length);
+        data.put(key);
+        int keySize = data.position();
+        PostingsCodec.encode(postings, data);
+        data.flip();
+        data.position(keySize);
+        int docsSize = keySize + PostingsCodec.positionsStart(data);
+        data.position(0);
+        int size = writeData(data, free);
+
+        // Solution: Open Addressing to solve collisions
+        // Other solutions include rehashing and separate chaining.
+        if (2 * (dictionaryTerms + 1) > dictionarySlots) {
+            growDictionary();
+        }
+        Entry entry = new Entry(hash(token), free, size, docsSize);
+        insertEntry(entry);
+        free += size;
+        docsWritten += docsSize - keySize;
+        postingsWritten += postings.size();
+        for (int i = 0; i < postings.size(); i++) {
+            positionsWritten += postings.get(i).getWordCount();
+        }
+        return entry;
+    }
+
+
+    /**
+     *  Prints the size of the data file per posting and per position, and
+     *  the size of the part that is read when the positions are not needed.
+     */
+    void printDataSize() {
+        System.err.println( String.format( "%d postings, %d positions in %d bytes (%.2f bytes/posting, %.2f bytes/position).",
+                postingsWritten, positionsWritten, free,
+                (double) free / Math.max( 1L, postingsWritten ), (double) free / Math.max( 1L, positionsWritten )));
+        System.err.println( String.format( "%d bytes without the positions (%.2f bytes/posting).",
+                docsWritten, (double) docsWritten / Math.max( 1L, postingsWritten )));
+    }
+
+
+    // ==================================================================
+    //
+    //  Block indexing: spilling sorted runs and merging them.
+
+    /**
+     *  Sorts the main-memory block by term and spills it to a new run file.
+     *  If the run cannot be written, its file is deleted and the block is
+     *  kept.
+     */
+    void writeBlock() throws IOException {
+        Integer[] termIDs = sortedTermIDs();
+        File file = new File( indexDir, RUN_FNAME + runs );
+        try ( DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream( new FileOutputStream( file )))) {
+            for (int termID : termIDs) {
+                byte[] data = dictionary.term( termID ).getBytes( StandardCharsets.UTF_8 );
+                out.writeInt( data.length );
+                out.write( data );
+                ByteBuffer postings = PostingsCodec.encode( index.get( termID ));
+                out.writeInt( postings.remaining() );
+                out.write( postings.array(), 0, postings.remaining() );
+            }
+        } catch ( IOException e ) {
+            file.delete();
+            throw e;
+        }
+        System.out.println( "Spilled " + termIDs.length + " terms to " + file.getName() );
+        runs++;
+        index.clear();
+        blockBytes = 0L;
+    }
+
+
+    /** Returns the IDs of the terms of the main-memory block, sorted by term. */
+    private Integer[] sortedTermIDs() {
+        Integer[] termIDs = new Integer[index.size()];
+        for (int i = 0; i < termIDs.length; i++) {
+            termIDs[i] = index.termID( i );
+        }
+        Arrays.sort( termIDs, Comparator.comparing( (Integer termID) -> dictionary.term( termID )));
+        return termIDs;
+    }
+
+
+    /** Receives the terms read from the runs, with their complete postings. */
+    private interface RunVisitor {
+        void accept( String term, PostingsList postings ) throws IOException;
+    }
+
+
+    /**
+     *  Reads the runs in a k-way merge, and visits every term with its
+     *  complete postings list, in term order. Since the runs are written in
+     *  docID order, the postings of a term are concatenated in the order of
+     *  the runs. The runs are left as they are.
+     */
+    private void readRuns( RunVisitor visitor ) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(
+                Comparator.comparing( (RunReader r) -> r.term ).thenComparingInt( r -> r.run ));
+        ArrayList<RunReader> readers = new ArrayList<RunReader>();
+        try {
+            for (int i = 0; i < runs; i++) {
+                RunReader reader = new RunReader( new File( indexDir, RUN_FNAME + i ), i );
+                readers.add( reader );
+                if (reader.advance()) {
+                    queue.add( reader );
+                }
+            }
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                String term = reader.term;
+                PostingsList postings = reader.postings;
+                if (reader.advance()) {
+                    queue.add( reader );
+                }
+                while (!queue.isEmpty() && queue.peek().term.equals( term )) {
+                    RunReader next = queue.poll();
+                    postings.append( next.postings );
+                    if (next.advance()) {
+                        queue.add( next );
+                    }
+                }
+                visitor.accept( term, postings );
+            }
+        } finally {
+            for (RunReader reader : readers) {
+                reader.in.close();
+            }
+        }
+    }
+
+
+    /**
+     *  Commits an index that has been spilled to runs: merges the runs into
+     *  the dictionary, data and terms files. The runs are deleted once the
+     *  merge has succeeded; if it fails, they are kept and the index is
+     *  left uncommitted.
+     */
+    void mergeRuns() throws IOException {
+        if (index.size() > 0) {
+            writeBlock();
+        }
+        createDictionary(0);
+        SortedTermDictionary.Writer terms = new SortedTermDictionary.Writer( termsFile );
+        readRuns( (term, postings) -> terms.add( term, writePostings( term, postings )));
+        terms.finish();
+        sortedTerms = SortedTermDictionary.read( termsMap );
+        writeDictionaryHeader();
+        System.err.println( collisions + " collisions in " + dictionarySlots + " slots." );
+        printDataSize();
+        mergedTerms = (int) dictionaryTerms;
+        for (int i = 0; i < runs; i++) {
+            new File( indexDir, RUN_FNAME + i ).delete();
+        }
+    }
+
+
+    /**
+     *  Spills the main-memory block if it has grown beyond the budget. The
+     *  terms added to the shared dictionary since the last check are
+     *  counted in the block. They stay in memory when the block is spilled,
+     *  since the k-gram index addresses them by their IDs, but counting
+     *  them keeps a block of many new terms from growing the heap by more
+     *  than the budget.
+     */
+    private void checkBlockBudget() {
+        int terms = dictionary.size();
+        for (; countedTerms < terms; countedTerms++) {
+            blockBytes += DICTIONARY_TERM_BYTES + dictionary.term(countedTerms).length();
+        }
+        if (blockBytes > blockBudget) {
+            try {
+                writeBlock();
+            } catch ( IOException e ) {
+                throw new UncheckedIOException( "Could not spill the index block: " + e.getMessage(), e );
+            }
+        }
+    }
+
+
     // ==================================================================
 
 
     /**
      *  Returns the postings for a specific term, or null
-     *  if the term is not in the index.
+     *  if the term is not in the index. Unless the term is in the
+     *  main-memory block, its postings are decoded from the data file, and
+     *  they are not cached.
      */
     public PostingsList getPostings( String token ) {
-        // REPLACE THE STATEMENT BELOW WITH YOUR CODE
-        // If the token is already in the cache (index HashMap)
-        if (this.index.containsKey(token)) {
-            return this.index.get(token);
+        // If the token is in the main-memory block
+        PostingsList block = this.index.get(dictionary.lookup(token));
+        if (block != null) {
+            return block;
+        }
+
+        Entry entry = findEntry(token);
+        if (entry == null) {
+            return null;
         }
 
-        int hash = Objects.hash(token) % HASHSIZE + HASHSIZE;
-        Entry entry = readEntry(cDict.getOrDefault(token, hash));
+        ByteBuffer data = readData(entry.begin, entry.size);
+        return data == null ? null : PostingsCodec.decode(data);
+    }
+
+
+    /**
+     *  Returns a cursor over the postings for a specific term, or null if
+     *  the term is not in the index. Unless the term is in the main-memory
+     *  block, the cursor decodes its postings from the bytes read from the
+     *  data file as it goes.
+     */
+    public PostingsCursor getCursor( String token ) {
+        return getCursor(token, true);
+    }
+
 
+    /**
+     *  Returns a cursor over the postings for a specific term, or null if
+     *  the term is not in the index. Without positions, only the part of
+     *  the postings before their positions is read from the data file.
+     */
+    public PostingsCursor getCursor( String token, boolean positions ) {
+        PostingsList block = this.index.get(dictionary.lookup(token));
+        if (block != null) {
+            return block.cursor();
+        }
+        Entry entry = findEntry(token);
         if (entry == null) {
             return null;
         }
+        ByteBuffer data = readData(entry.begin, positions ? entry.size : entry.docsSize);
+        return data == null ? null : PostingsCodec.cursor(data, positions);
+    }
+
+
+    /**
+     *  Returns a bitmap of the documents that contain a term, if it occurs
+     *  in a large fraction of the documents, or null. The bitmap is built
+     *  from the postings on disk the first time it is asked for.
+     */
+    public DocBitmap getBitmap( String token ) {
+        return bitmaps.get(this, token);
+    }
+
+
+    /**
+     *  Returns the terms of the committed index that start with a prefix,
+     *  in sorted order. They are read from the terms file, beginning at
+     *  the block that the prefix falls in.
+     */
+    public List<String> getTermsWithPrefix( String prefix ) {
+        ArrayList<String> terms = new ArrayList<String>();
+        if (sortedTerms != null) {
+            SortedTermDictionary.Cursor cursor = sortedTerms.prefix(prefix);
+            for (String term = cursor.next(); term != null; term = cursor.next()) {
+                terms.add(term);
+            }
+        }
+        return terms;
+    }
 
-        String postingsList;
-        postingsList = readData(entry.begin, entry.size);
 
-        PostingsList postings = PostingsList.toArray(postingsList);
-        this.index.put(token, postings);
+    /**
+     *  Returns the number of documents that contain a term. Unless the
+     *  term is in the main-memory block, only the size at the start of its
+     *  postings list is read from the data file.
+     */
+    public int getDocFreq( String token ) {
+        PostingsList block = this.index.get(dictionary.lookup(token));
+        if (block != null) {
+            return block.size();
+        }
+        Entry entry = findEntry(token);
+        if (entry == null || entry.size == 0) {
+            return 0;
+        }
+        ByteBuffer data = readData(entry.begin, Math.min(entry.size, PostingsCodec.MAX_VBYTE_LENGTH));
+        return data == null ? 0 : PostingsCodec.readVByte(data);
+    }
+
 
-        return postings;
+    /**
+     *  Returns the dictionary entry of a term, pointing past the term in the
+     *  data file, or null if the term is not in the dictionary. A slot whose
+     *  fingerprint matches is only accepted if the term stored in the data
+     *  file is the same, so a term that is not in the index is never taken
+     *  for another one.
+     *
+     *  With a perfect hash function, the term is not read: the fingerprints
+     *  of the terms in the index are distinct, so a term that is not in it
+     *  is only taken for another if it has the same 64-bit hash.
+     */
+    Entry findEntry( String token ) {
+        if (dictionarySlots == 0) {
+            return null;
+        }
+        long hash = hash(token);
+        byte[] key = token.getBytes(StandardCharsets.UTF_8);
+        if (perfectHash != null) {
+            int slot = perfectHash.lookup(hash);
+            Entry entry = slot < 0 ? null : readEntry(slot);
+            if (entry == null || entry.fingerprint != hash) {
+                return null;
+            }
+            int keySize = PostingsCodec.vByteLength(key.length) + key.length;
+            return new Entry(hash, entry.begin + keySize, entry.size - keySize, entry.docsSize - keySize);
+        }
+        long mask = dictionarySlots - 1;
+        for (long slot = hash & mask, probes = 0; probes < dictionarySlots; slot = (slot + 1) & mask, probes++) {
+            Entry entry = readEntry(slot);
+            if (entry == null || entry.size == 0) {
+                return null;
+            }
+            if (entry.fingerprint == hash) {
+                Entry found = verifyEntry(entry, key);
+                if (found != null) {
+                    return found;
+                }
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     *  Returns a dictionary entry pointing past its term in the data file,
+     *  or null if the term is not the given one.
+     */
+    private Entry verifyEntry( Entry entry, byte[] key ) {
+        ByteBuffer data = readData(entry.begin, Math.min(entry.size, PostingsCodec.MAX_VBYTE_LENGTH + key.length));
+        if (data == null || PostingsCodec.readVByte(data) != key.length || data.remaining() < key.length) {
+            return null;
+        }
+        int keySize = data.position() + key.length;
+        if (!data.limit(keySize).equals(ByteBuffer.wrap(key))) {
+            return null;
+        }
+        return new Entry(entry.fingerprint, entry.begin + keySize, entry.size - keySize, entry.docsSize - keySize);
     }
 
 
@@ -329,50 +1023,119 @@ public class PersistentHashedIndex implements Index {
      */
     public void insert( String token, int docID, int offset ) {
         // YOUR CODE HERE
-        PostingsList postList = this.index.getOrDefault(token, null);
+        int termID = dictionary.add(token);
+        bitmaps.clear();
+        PostingsList postList = this.index.get(termID);
         // If PostingsList does not exist
         if (postList == null) {
             postList = new PostingsList(docID, offset);
-            this.index.put(token, postList);
+            this.index.put(termID, postList);
+            blockBytes += TERM_BYTES + POSTING_BYTES + POSITION_BYTES;
         }
         // If PostingsList exists
         else {
+            int size = postList.size();
             postList.insert(docID, offset);
+            blockBytes += (postList.size() > size ? POSTING_BYTES : 0) + POSITION_BYTES;
         }
+        checkBlockBudget();
     }
 
-    public void writeCollisions() {
-        try {
-            FileOutputStream fileOut = new FileOutputStream(INDEXDIR + "/collisions");
-            ObjectOutputStream out = new ObjectOutputStream(fileOut);
-            out.writeObject(cDict);
-            out.close(); fileOut.close();
-            System.out.println("Hash collisions have been saved in collisions.");
-        } catch (Exception e) {
-            System.err.println("An error occurred: " + e.getMessage());
+    /**
+     *  Appends the posting of a document to the main-memory hashtable.
+     */
+    public void insert( int termID, PostingsEntry entry ) {
+        bitmaps.clear();
+        PostingsList postList = this.index.get(termID);
+        if (postList == null) {
+            postList = new PostingsList();
+            this.index.put(termID, postList);
+            blockBytes += TERM_BYTES;
         }
+        postList.append(entry);
+        blockBytes += POSTING_BYTES + (long) POSITION_BYTES * entry.getWordCount();
+        checkBlockBudget();
     }
 
-    public void readCollisions() {
-        try {
-            FileInputStream fileIn = new FileInputStream(INDEXDIR + "/collisions");
-            ObjectInputStream in = new ObjectInputStream(fileIn);
-            cDict = (HashMap<String, Integer>) in.readObject();
-            in.close(); fileIn.close();
-            System.out.println("Hash collisions have been read from file.");
-        } catch (EOFException e) {
-            System.err.println("Hash collisions reaches EOF.");
-        } catch (Exception e) {
-            System.err.println("An error occurred: " + e.getMessage());
+    /**
+     *  Appends the postings of a term to the main-memory hashtable.
+     */
+    public void merge( int termID, PostingsList postings ) {
+        bitmaps.clear();
+        PostingsList postList = this.index.get(termID);
+        if (postList == null) {
+            this.index.put(termID, postings);
+            blockBytes += TERM_BYTES;
         }
+        else {
+            postList.append(postings);
+        }
+        for (int i = 0; i < postings.size(); i++) {
+            blockBytes += POSTING_BYTES + (long) POSITION_BYTES * postings.get(i).getWordCount();
+        }
+        checkBlockBudget();
     }
 
+    /**
+     *  Visits every term in the index. If blocks have been spilled to disk,
+     *  the rest of the block is spilled as well and the terms are read from
+     *  the runs, or from the committed index once the runs have been merged.
+     *  This does not commit the index.
+     */
+    public void forEachTerm( BiConsumer<String,PostingsList> visitor ) {
+        if (runs == 0) {
+            for (int i = 0; i < index.size(); i++) {
+                int termID = index.termID(i);
+                visitor.accept(dictionary.term(termID), index.get(termID));
+            }
+            return;
+        }
+        try {
+            if (mergedTerms < 0) {
+                if (index.size() > 0) {
+                    writeBlock();
+                }
+                readRuns( visitor::accept );
+                return;
+            }
+            SortedTermDictionary.Cursor terms = sortedTerms.range(null, null);
+            while (terms.next() != null) {
+                ByteBuffer data = readData(terms.entry().begin, terms.entry().size);
+                if (data == null) {
+                    throw new IOException( "The postings of " + terms.term() + " could not be read." );
+                }
+                int keyLength = PostingsCodec.readVByte(data);
+                data.position(data.position() + keyLength);
+                visitor.accept(terms.term(), PostingsCodec.decode(data));
+            }
+        } catch ( IOException e ) {
+            throw new UncheckedIOException( e );
+        }
+    }
 
     /**
-     *  Write index to file after indexing is done.
+     *  Write index to file after indexing is done. If blocks have been
+     *  spilled to disk, this is where the runs are merged. An
+     *  UncheckedIOException means that the index has not been committed.
      */
     public void cleanup() {
-        System.out.println( index.keySet().size() + " unique words" );
+        bitmaps.clear();
+        if (runs > 0) {
+            try {
+                if (mergedTerms < 0) {
+                    System.out.println( "Merging " + runs + " runs... " );
+                    mergeRuns();
+                }
+                System.out.println( mergedTerms + " unique words" );
+                System.out.print( "Writing index to disk... " );
+                writeDocInfo();
+            } catch ( IOException e ) {
+                throw new UncheckedIOException( "Could not commit the index: " + e.getMessage(), e );
+            }
+            System.out.println( "Done! Good Job!" );
+            return;
+        }
+        System.out.println( index.size() + " unique words" );
         System.out.print( "Writing index to disk... " );
         writeIndex();
         System.out.println( "Done! Good Job!" );
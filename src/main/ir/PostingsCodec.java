@@ -0,0 +1,426 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ *   The binary format of a postings list on disk, used both in the data
+ *   file of the persistent index and in the runs spilled while indexing.
+ *
+ *   A list is stored as the number of postings and the length in bytes of
+ *   its document stream, followed by the two streams. The document stream
+ *   holds each posting as the gap from the previous docID and its number
+ *   of positions; the position stream holds the gaps between the positions
+ *   of each posting, in the same order:
+ *
+ *       size docsLength (docGap count)* (posGap ... posGap)*
+ *
+ *   The first docID and the first position of each posting are stored as
+ *   gaps from 0. All numbers are variable-byte codes: 7 bits per byte,
+ *   most significant group first, with the high bit set on the last byte
+ *   of a number. Most gaps are small, so most numbers take a single byte.
+ *
+ *   Since the positions come last, a query that needs only the docIDs and
+ *   term frequencies can read the list up to positionsStart() and no
+ *   further.
+ *
+ *   A list of more than BLOCK_SIZE postings is divided into blocks of
+ *   BLOCK_SIZE postings, and a skip table follows the docsLength: for every
+ *   block, the gap between its last docID and the last docID of the block
+ *   before it, and its lengths in bytes in the two streams.
+ *
+ *       size docsLength (lastDocGap docLength posLength)* (docGap count)* (posGap ... posGap)*
+ *
+ *   A list is either decoded whole, with a single pass over the streams,
+ *   or read lazily through a cursor, which decodes the positions of a
+ *   document only when they are asked for, and uses the skip table to
+ *   jump over the blocks before the target of advance().
+ */
+public final class PostingsCodec {
+
+    private PostingsCodec() {
+    }
+
+
+    /** The largest number of bytes of a variable-byte code. */
+    static final int MAX_VBYTE_LENGTH = 5;
+
+    /** The number of postings in a block of the skip table. */
+    public static final int BLOCK_SIZE = 128;
+
+    /** The number of entries of each block in the skip table. */
+    public static final int SKIP_ENTRIES = 3;
+
+
+    /** Returns the number of blocks in the skip table of a list of the given size. */
+    public static int blocks( int size ) {
+        return size > BLOCK_SIZE ? (size + BLOCK_SIZE - 1) / BLOCK_SIZE : 0;
+    }
+
+
+    /** Returns the number of positions of all postings of a list. */
+    private static long positions( PostingsList postings ) {
+        long positions = 0L;
+        for (int i = 0; i < postings.size(); i++) {
+            positions += postings.get( i ).getWordCount();
+        }
+        return positions;
+    }
+
+
+    /** Returns an upper bound on the number of bytes of the encoding of a postings list. */
+    public static int maxEncodedSize( PostingsList postings ) {
+        long size = 2 + (long) SKIP_ENTRIES * blocks( postings.size() ) + 2L * postings.size() + positions( postings );
+        return (int) Math.min( Integer.MAX_VALUE, MAX_VBYTE_LENGTH * size );
+    }
+
+
+    /** Encodes a postings list into a new buffer, which is ready to be read. */
+    public static ByteBuffer encode( PostingsList postings ) {
+        ByteBuffer buffer = ByteBuffer.allocate( maxEncodedSize( postings ));
+        encode( postings, buffer );
+        buffer.flip();
+        return buffer;
+    }
+
+
+    /** Encodes a postings list at the position of the buffer. */
+    public static void encode( PostingsList postings, ByteBuffer buffer ) {
+        int size = postings.size();
+        int blocks = blocks( size );
+        // The streams are encoded first, to find their lengths and those of the blocks.
+        ByteBuffer docs = ByteBuffer.allocate( 2 * MAX_VBYTE_LENGTH * size );
+        ByteBuffer positions = ByteBuffer.allocate( (int) (MAX_VBYTE_LENGTH * positions( postings )));
+        int[] skips = new int[SKIP_ENTRIES * blocks];
+        int lastDocID = 0, lastBlockDocID = 0, docStart = 0, positionStart = 0;
+        for (int i = 0; i < size; i++) {
+            PostingsEntry entry = postings.get( i );
+            encode( entry, lastDocID, docs, positions );
+            lastDocID = entry.docID;
+            if (blocks > 0 && ((i + 1) % BLOCK_SIZE == 0 || i + 1 == size)) {
+                int b = i / BLOCK_SIZE;
+                skips[SKIP_ENTRIES * b] = lastDocID - lastBlockDocID;
+                skips[SKIP_ENTRIES * b + 1] = docs.position() - docStart;
+                skips[SKIP_ENTRIES * b + 2] = positions.position() - positionStart;
+                lastBlockDocID = lastDocID;
+                docStart = docs.position();
+                positionStart = positions.position();
+            }
+        }
+        writeVByte( buffer, size );
+        writeVByte( buffer, docs.position() );
+        for (int skip : skips) {
+            writeVByte( buffer, skip );
+        }
+        buffer.put( docs.array(), 0, docs.position() );
+        buffer.put( positions.array(), 0, positions.position() );
+    }
+
+
+    /**
+     *  Encodes a single posting at the positions of the two streams, as the
+     *  gap from the docID of the posting before it.
+     */
+    public static void encode( PostingsEntry entry, int lastDocID, ByteBuffer docs, ByteBuffer positions ) {
+        int count = entry.getWordCount();
+        writeVByte( docs, entry.docID - lastDocID );
+        writeVByte( docs, count );
+        int lastPosition = 0;
+        for (int j = 0; j < count; j++) {
+            writeVByte( positions, entry.position( j ) - lastPosition );
+            lastPosition = entry.position( j );
+        }
+    }
+
+
+    /**
+     *  Returns the number of bytes of an encoded list, from the position of
+     *  the buffer, that precede its position stream. The buffer is not moved.
+     */
+    public static int positionsStart( ByteBuffer buffer ) {
+        ByteBuffer header = buffer.duplicate();
+        int size = readVByte( header );
+        int docsLength = readVByte( header );
+        skipVBytes( header, SKIP_ENTRIES * blocks( size ));
+        return header.position() - buffer.position() + docsLength;
+    }
+
+
+    /**
+     *  Decodes the postings list at the position of the buffer. Returns
+     *  null for an empty buffer or an empty list.
+     */
+    public static PostingsList decode( ByteBuffer buffer ) {
+        if ( !buffer.hasRemaining() ) {
+            return null;
+        }
+        int size = readVByte( buffer );
+        int docsLength = readVByte( buffer );
+        skipVBytes( buffer, SKIP_ENTRIES * blocks( size ));
+        ByteBuffer positions = buffer.duplicate();
+        positions.position( buffer.position() + docsLength );
+        return decode( buffer, positions, size );
+    }
+
+
+    /**
+     *  Decodes the given number of postings from their document and
+     *  position streams, at the positions of the buffers. Returns null if
+     *  there are none.
+     */
+    public static PostingsList decode( ByteBuffer docs, ByteBuffer positions, int size ) {
+        if ( size == 0 ) {
+            return null;
+        }
+        PostingsList postings = new PostingsList();
+        int docID = 0;
+        for (int i = 0; i < size; i++) {
+            docID += readVByte( docs );
+            int count = readVByte( docs );
+            int[] entryPositions = new int[count];
+            int position = 0;
+            for (int j = 0; j < count; j++) {
+                position += readVByte( positions );
+                entryPositions[j] = position;
+            }
+            postings.append( new PostingsEntry( docID, entryPositions, count ));
+        }
+        return postings;
+    }
+
+
+    /**
+     *  Returns a cursor over the postings list at the position of the
+     *  buffer, or null for an empty buffer or an empty list.
+     */
+    public static PostingsCursor cursor( ByteBuffer buffer ) {
+        return cursor( buffer, true );
+    }
+
+
+    /**
+     *  Returns a cursor over the postings list at the position of the
+     *  buffer, or null for an empty buffer or an empty list. Without
+     *  positions, the buffer need not hold more than the bytes before
+     *  positionsStart(), and the positions of the cursor cannot be asked for.
+     */
+    public static PostingsCursor cursor( ByteBuffer buffer, boolean positions ) {
+        if ( !buffer.hasRemaining() ) {
+            return null;
+        }
+        int size = readVByte( buffer );
+        if ( size == 0 ) {
+            return null;
+        }
+        int docsLength = readVByte( buffer );
+        int blocks = blocks( size );
+        int[] skips = new int[SKIP_ENTRIES * blocks];
+        int lastDocID = 0;
+        for (int b = 0; b < blocks; b++) {
+            lastDocID += readVByte( buffer );
+            skips[SKIP_ENTRIES * b] = lastDocID;
+            skips[SKIP_ENTRIES * b + 1] = readVByte( buffer );
+            skips[SKIP_ENTRIES * b + 2] = readVByte( buffer );
+        }
+        ByteBuffer positionStream = null;
+        if ( positions ) {
+            positionStream = buffer.duplicate();
+            positionStream.position( buffer.position() + docsLength );
+        }
+        return new Cursor( buffer, positionStream, size, skips, blocks );
+    }
+
+
+    /**
+     *  Returns a cursor over the given number of postings in the document
+     *  and position streams at the positions of the buffers, whose skip
+     *  table of the given number of blocks is given as triples of the last
+     *  docID and the lengths of each block in the two streams. The blocks
+     *  may cover only the first postings. Without a position stream, the
+     *  positions of the cursor cannot be asked for.
+     */
+    public static PostingsCursor cursor( ByteBuffer docs, ByteBuffer positions, int size, int[] skips, int blocks ) {
+        return new Cursor( docs, positions, size, skips, blocks );
+    }
+
+
+    /**
+     *  A cursor over encoded postings. The position stream is only read
+     *  when the positions of a document are asked for; the positions of
+     *  the documents passed until then are skipped in one go.
+     */
+    private static class Cursor implements PostingsCursor {
+        private final ByteBuffer docs;
+        private final ByteBuffer positionStream;
+        private final int size;
+
+        /** The last docID and the lengths in the two streams of each block of the skip table. */
+        private final int[] skips;
+        private final int blocks;
+
+        /**
+         *  The offsets in the two streams where each block starts, and where
+         *  the postings after the blocks start.
+         */
+        private final int[] docStarts, positionStarts;
+
+        /** Number of postings read so far, including the current one. */
+        private int read = 0;
+
+        private int docID = -1;
+        private int freq = 0;
+
+        /** Number of positions in the position stream before those of the current document. */
+        private int skipped = 0;
+
+        /** True if the positions of the current document have not been read. */
+        private boolean pending = false;
+
+        private int[] positions = new int[16];
+
+        Cursor( ByteBuffer docs, ByteBuffer positionStream, int size, int[] skips, int blocks ) {
+            this.docs = docs;
+            this.positionStream = positionStream;
+            this.size = size;
+            this.skips = skips;
+            this.blocks = blocks;
+            this.docStarts = new int[blocks + 1];
+            this.positionStarts = new int[blocks + 1];
+            docStarts[0] = docs.position();
+            positionStarts[0] = positionStream == null ? 0 : positionStream.position();
+            for (int b = 0; b < blocks; b++) {
+                docStarts[b + 1] = docStarts[b] + skips[SKIP_ENTRIES * b + 1];
+                positionStarts[b + 1] = positionStarts[b] + skips[SKIP_ENTRIES * b + 2];
+            }
+        }
+
+        public int cost() {
+            return size;
+        }
+
+        public int docID() {
+            return docID;
+        }
+
+        public int nextDoc() {
+            if ( read == size ) {
+                pending = false;
+                return docID = NO_MORE_DOCS;
+            }
+            if ( pending ) {
+                skipped += freq;
+            }
+            docID = (read == 0 ? 0 : docID) + readVByte( docs );
+            freq = readVByte( docs );
+            pending = true;
+            read++;
+            return docID;
+        }
+
+        public int advance( int target ) {
+            if ( docID >= target ) {
+                return docID;
+            }
+            // Jump to the block of the target, if it is past the next posting's block.
+            int next = read / BLOCK_SIZE;
+            int b = next;
+            while ( b < blocks && skips[SKIP_ENTRIES * b] < target ) {
+                b++;
+            }
+            if ( b > next ) {
+                docs.position( docStarts[b] );
+                if ( positionStream != null ) {
+                    positionStream.position( positionStarts[b] );
+                }
+                docID = skips[SKIP_ENTRIES * (b - 1)];
+                read = b * BLOCK_SIZE;
+                skipped = 0;
+                pending = false;
+                if ( read >= size ) {
+                    read = size;
+                    return docID = NO_MORE_DOCS;
+                }
+            }
+            int doc;
+            do {
+                doc = nextDoc();
+            } while ( doc < target );
+            return doc;
+        }
+
+        public int freq() {
+            return freq;
+        }
+
+        public int[] positions() {
+            if ( positionStream == null ) {
+                throw new IllegalStateException( "The cursor was opened without positions." );
+            }
+            if ( pending ) {
+                skipVBytes( positionStream, skipped );
+                skipped = 0;
+                if ( freq > positions.length ) {
+                    positions = new int[Math.max( freq, 2 * positions.length )];
+                }
+                int position = 0;
+                for (int j = 0; j < freq; j++) {
+                    position += readVByte( positionStream );
+                    positions[j] = position;
+                }
+                pending = false;
+            }
+            return positions;
+        }
+    }
+
+
+    /** Writes a non-negative number as a variable-byte code. */
+    static void writeVByte( ByteBuffer buffer, int n ) {
+        int shift = 28;
+        while ( shift > 0 && (n >>> shift) == 0 ) {
+            shift -= 7;
+        }
+        for (; shift > 0; shift -= 7) {
+            buffer.put( (byte) ((n >>> shift) & 0x7f) );
+        }
+        buffer.put( (byte) (n & 0x7f | 0x80) );
+    }
+
+
+    /** Returns the number of bytes of the variable-byte code of a non-negative number. */
+    static int vByteLength( int n ) {
+        int length = 1;
+        while ( (n >>>= 7) != 0 ) {
+            length++;
+        }
+        return length;
+    }
+
+
+    /** Skips the given number of variable-byte codes. */
+    static void skipVBytes( ByteBuffer buffer, int n ) {
+        while ( n > 0 ) {
+            if ( buffer.get() < 0 ) {
+                n--;
+            }
+        }
+    }
+
+
+    /** Reads a variable-byte code. */
+    static int readVByte( ByteBuffer buffer ) {
+        int n = 0;
+        while ( true ) {
+            byte b = buffer.get();
+            if ( b < 0 ) {
+                return (n << 7) | (b & 0x7f);
+            }
+            n = (n << 7) | b;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+
+/**
+ *   Iterates over the postings of a term one document at a time, in
+ *   increasing docID order, without materializing the postings list.
+ *
+ *   A cursor starts before its first document. The positions of the
+ *   current document are only decoded if they are asked for, and a cursor
+ *   over encoded postings uses the skip table of the encoding to advance
+ *   past whole blocks of documents.
+ */
+public interface PostingsCursor {
+
+    /** The docID of a cursor that has gone past its last document. */
+    public static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+    /** Returns the number of documents of the term. */
+    public int cost();
+
+    /** Returns the current docID, -1 before the first document, or NO_MORE_DOCS. */
+    public int docID();
+
+    /** Moves to the next document and returns its docID, or NO_MORE_DOCS. */
+    public int nextDoc();
+
+    /**
+     *  Moves to the first document whose docID is at least the target, and
+     *  returns its docID, or NO_MORE_DOCS. The cursor does not move if it
+     *  already is at such a document.
+     */
+    default int advance( int target ) {
+        int doc = docID();
+        while (doc < target) {
+            doc = nextDoc();
+        }
+        return doc;
+    }
+
+    /** Returns the number of positions of the term in the current document. */
+    public int freq();
+
+    /**
+     *  Returns the positions of the term in the current document, in the
+     *  first freq() elements of the array. The array may be reused by the
+     *  cursor for the next document.
+     *
+     *  @throws IllegalStateException if the cursor was opened without positions
+     */
+    public int[] positions();
+}
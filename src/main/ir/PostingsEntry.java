@@ -7,15 +7,23 @@
 
 package ir;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.io.Serializable;
 
 public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
 
+    private static final int[] NO_POSITIONS = new int[0];
+
     public int docID;
-    public ArrayList<Integer> positions = new ArrayList<Integer>();
     public double score = 0;
 
+    /**
+     *  The positions of the term in the document, in increasing order. Only
+     *  the first @code{count} elements are used; the array grows as needed.
+     */
+    private int[] positions;
+    private int count;
+
     /**
      *  PostingsEntries are compared by their score (only relevant
      *  in ranked retrieval).
@@ -33,8 +41,8 @@ public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
 
         sb.append(docID);
         sb.append(":");
-        for (int pos: positions) {
-            sb.append(pos);
+        for (int i = 0; i < count; i++) {
+            sb.append(positions[i]);
             sb.append(",");
         }
         sb.setLength(sb.length() - 1);
@@ -44,21 +52,62 @@ public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
 
     public PostingsEntry( int docID, int offset ) {
         this.docID = docID;
-        this.positions.add(offset);
+        this.positions = new int[] { offset };
+        this.count = 1;
     }
 
     public PostingsEntry( int docID, double score ) {
         this.docID = docID;
         this.score = score;
+        this.positions = NO_POSITIONS;
+    }
+
+    /**
+     *  Creates the posting of a document from the first @code{count}
+     *  positions of the array, which is kept by the entry and must not
+     *  be modified by the caller afterwards.
+     */
+    public PostingsEntry( int docID, int[] positions, int count ) {
+        this.docID = docID;
+        this.positions = positions;
+        this.count = count;
     }
 
     /** Copy Constructor */
     public PostingsEntry( PostingsEntry entry ) {
         this.docID = entry.docID;
-        this.positions = new ArrayList<Integer>(entry.positions);
+        this.positions = Arrays.copyOf(entry.positions, entry.count);
+        this.count = entry.count;
         this.score = entry.score;
     }
 
+    /** Returns the array of positions, of which the first getWordCount() are used. */
+    int[] positions() {
+        return positions;
+    }
+
+    /** Returns the ith position of the term in the document. */
+    public int position( int i ) {
+        return positions[i];
+    }
+
+    /** Adds a position, which must be larger than the last one. */
+    public void addPosition( int offset ) {
+        if (count == positions.length) {
+            positions = Arrays.copyOf(positions, Math.max(4, 2 * count));
+        }
+        positions[count++] = offset;
+    }
+
+    /** Adds all positions of another entry, which must follow the positions of this one. */
+    public void addPositions( PostingsEntry entry ) {
+        if (count + entry.count > positions.length) {
+            positions = Arrays.copyOf(positions, Math.max(count + entry.count, 2 * count));
+        }
+        System.arraycopy(entry.positions, 0, positions, count, entry.count);
+        count += entry.count;
+    }
+
     public double getScore() { return this.score; }
 
     /**
@@ -66,7 +115,7 @@ public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
      *  @return the word count of the term in this doc
      */
     public int getWordCount() {
-        return this.positions.size();
+        return this.count;
     }
 
     /**
@@ -74,7 +123,13 @@ public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
      *  @return the log frequency weight of the term in this doc
      */
     public double getTermFreqWeight( boolean logFreq ) {
-        int tf = this.getWordCount();
+        return getTermFreqWeight( this.getWordCount(), logFreq );
+    }
+
+    /**
+     *  Calculate the (log-)freq weight of a term frequency.
+     */
+    public static double getTermFreqWeight( int tf, boolean logFreq ) {
         return tf > 0 ? (logFreq ? Math.log10(tf) + 1D : tf) : 0D;
     }
 
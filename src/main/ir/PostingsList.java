@@ -8,7 +8,6 @@
 package ir;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Comparator;
 
 public class PostingsList {
@@ -29,43 +28,6 @@ public class PostingsList {
         return sb.toString();
     }
 
-    /** Data Syntax:
-     *  docID1: pos1, pos2, ..., post! docID2: pos1, pos2, ..., post! ...
-     */
-    public static PostingsList toArray(String postingsList) {
-        PostingsList pList = null;
-        String[] entries = postingsList.split("!");
-        ArrayList<String> postingsEntries = new ArrayList<>(Arrays.asList(entries));
-
-        if (postingsList.isEmpty()) {
-            return null;
-        }
-
-        for (String entry : postingsEntries) {
-            String[] dataStr = entry.split(":");
-            String docID = dataStr[0], posStr = dataStr[1];
-
-            String[] posList = posStr.split(",");
-            ArrayList<String> pos = new ArrayList<>(Arrays.asList(posList));
-
-            PostingsEntry postingsEntry = new PostingsEntry(
-                    Integer.parseInt(docID),
-                    Integer.parseInt(pos.get(0))
-            );
-
-            pos.stream().skip(1).forEachOrdered(i -> {
-                postingsEntry.positions.add(Integer.parseInt(i));
-            });
-
-            if (pList == null)
-                pList = new PostingsList(postingsEntry);
-            else
-                pList.add(postingsEntry);
-        }
-        return pList;
-    }
-
-
     /** Number of postings in this list. */
     public int size() {
         return list.size();
@@ -73,7 +35,7 @@ public class PostingsList {
 
     /** Returns the ith posting. */
     public PostingsEntry get( int i ) {
-    return list.get( i );
+        return list.get( i );
     }
 
     /** Returns all the postings. */
@@ -87,10 +49,48 @@ public class PostingsList {
         if (this.list.get(pos).docID != docID) {
             this.list.add(new PostingsEntry(docID, offset));
         }
-        else this.list.get(pos).positions.add(offset);
+        else this.list.get(pos).addPosition(offset);
+    }
+
+    /**
+     *  Appends all postings of another list. The docIDs of the appended list
+     *  must not be smaller than the last docID of this list. If a document
+     *  continues in the appended list, its positions are concatenated.
+     */
+    public void append( PostingsList postings ) {
+        if (postings.list.isEmpty()) {
+            return;
+        }
+        int start = 0;
+        if (!this.list.isEmpty()) {
+            PostingsEntry last = this.list.get(this.list.size()-1);
+            PostingsEntry first = postings.list.get(0);
+            if (first.docID < last.docID) {
+                throw new IllegalArgumentException("Postings must be appended in docID order.");
+            }
+            if (first.docID == last.docID) {
+                last.addPositions(first);
+                start = 1;
+            }
+        }
+        this.list.addAll(postings.list.subList(start, postings.list.size()));
+    }
+
+    /**
+     *  Appends the complete posting of a document, without copying it. The
+     *  docID must be larger than the last docID of this list.
+     */
+    public void append( PostingsEntry entry ) {
+        if (!this.list.isEmpty() && entry.docID <= this.list.get(this.list.size()-1).docID) {
+            throw new IllegalArgumentException("Postings must be appended in docID order.");
+        }
+        this.list.add(entry);
     }
 
     /** Constructor. */
+    public PostingsList() {
+    }
+
     public PostingsList( int docID, int offset ) {
         this.list.add(new PostingsEntry(docID, offset));
     }
@@ -103,75 +103,108 @@ public class PostingsList {
         this.list.add(new PostingsEntry(entry));
     }
 
-    /** Find intersection of two posting lists (P11/48) */
-    public PostingsList intersect ( PostingsList postList2 ) {
-        int i = 0, j = 0;
-        PostingsList result = null;
-        while (i < this.list.size() && j < postList2.size()) {
-            int docID1 = this.list.get(i).docID;
-            int docID2 = postList2.get(j).docID;
-            if (docID1 == docID2) {
-                if (result == null)
-                    result = new PostingsList(docID1, 0);
-                else
-                    result.insert(docID1, 0);
-                i++; j++;
-            }
-            else if (docID1 < docID2) { i++; }
-            else { j++; }
+    /**
+     *  Returns the index of the first posting at or after index i whose
+     *  docID is at least the given docID, or the size of the list if there
+     *  is none. The distance to the posting is bracketed by doubling steps,
+     *  and then found by binary search (galloping).
+     */
+    int advance( int i, int docID ) {
+        int n = this.list.size();
+        if (i >= n || this.list.get(i).docID >= docID) {
+            return i;
         }
-        return result;
+        // list[lo] < docID; find hi with list[hi] >= docID, or hi = n.
+        int lo = i, step = 1;
+        while (lo + step < n && this.list.get(lo + step).docID < docID) {
+            lo += step;
+            step <<= 1;
+        }
+        int hi = Math.min(lo + step, n);
+        while (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            if (this.list.get(mid).docID < docID)
+                lo = mid;
+            else
+                hi = mid;
+        }
+        return hi;
     }
 
-    /** Find places where the two terms appear within next k words of
-     *  each other (P42/79)
-     *
-     *  @return a list giving docID and the term position in p1 and p2
+    /**
+     *  Writes the first size2 positions of positions2 that follow one of
+     *  the first size1 positions of positions1 within k words to result,
+     *  which must have room for size2 positions and be neither of the
+     *  other arrays, and returns their number.
      */
-    public PostingsList positionalIntersect( PostingsList postList2, int k ) {
-        int i = 0, j = 0;
-        PostingsList result = null;
-
-        while (i < this.list.size() && j < postList2.size()) {
-            PostingsEntry entry1 = this.list.get(i);
-            PostingsEntry entry2 = postList2.get(j);
-            int docID1 = entry1.docID;
-            int docID2 = entry2.docID;
-
-            if (docID1 == docID2) {
-                ArrayList<Integer> positions = getIntegers(k, entry1, entry2);
-                // Remove nothing in this case
-                // e.g. a big pig is a big pig, pig2 - big1 > k.
-
-                for (int pos : positions) {
-                    if (result == null)
-                        result = new PostingsList(docID1, pos);
-                    else
-                        result.insert(docID1, pos);
-                }
-                i++; j++;
+    static int positionalIntersect(int k, int[] positions1, int size1,
+                                   int[] positions2, int size2, int[] result) {
+        int pp1 = 0, pp2 = 0;  // postings position ptr.
+        int count = 0;
+
+        while (pp1 < size1 && pp2 < size2) {
+            int pos1 = positions1[pp1], pos2 = positions2[pp2];
+            int offset = pos2 - pos1;
+            if (0 <= offset && offset <= k) {
+                result[count++] = pos2;
+                pp2++;
             }
-            else if (docID1 < docID2) { i++; }
-            else { j++; }
+            else if (pos2 > pos1) pp1++;
+            else pp2++;
         }
-        return result;
+        return count;
     }
 
-    private static ArrayList<Integer> getIntegers(int k, PostingsEntry entry1, PostingsEntry entry2) {
-        int pp1 = 0, pp2 = 0;  // postings position ptr.
-        ArrayList<Integer> positions1 = entry1.positions;
-        ArrayList<Integer> positions2 = entry2.positions;
-        ArrayList<Integer> positions = new ArrayList<Integer>();
+    /** Returns a cursor over the postings of this list. */
+    public PostingsCursor cursor() {
+        return new Cursor(this);
+    }
 
-        while (pp1 < positions1.size() && pp2 < positions2.size()) {
-            int offset = positions2.get(pp2) - positions1.get(pp1);
-            if (0 <= offset && offset <= k) {
-                positions.add(positions2.get(pp2++));
+    /**
+     *  A cursor over a postings list in memory, which gallops to the target
+     *  documents of advance().
+     */
+    private static class Cursor implements PostingsCursor {
+        private final PostingsList postings;
+        private int i = -1;
+        private int docID = -1;
+
+        Cursor( PostingsList postings ) {
+            this.postings = postings;
+        }
+
+        public int cost() {
+            return postings.size();
+        }
+
+        public int docID() {
+            return docID;
+        }
+
+        public int nextDoc() {
+            return moveTo(i + 1);
+        }
+
+        public int advance( int target ) {
+            if (docID >= target) {
+                return docID;
             }
-            else if (positions2.get(pp2) > positions1.get(pp1)) pp1++;
-            else pp2++;
+            return moveTo(postings.advance(Math.max(i, 0), target));
+        }
+
+        private int moveTo( int index ) {
+            i = index;
+            docID = i < postings.size() ? postings.get(i).docID : NO_MORE_DOCS;
+            return docID;
+        }
+
+        public int freq() {
+            return postings.get(i).getWordCount();
+        }
+
+        public int[] positions() {
+            return postings.get(i).positions();
         }
-        return positions;
     }
 
     public void sortByScore() {
@@ -0,0 +1,69 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.Arrays;
+
+
+/**
+ *   The postings lists of an index, in an array addressed by term ID.
+ *   The IDs of the terms that have postings are kept in the order in
+ *   which they were added, so the table can be iterated over and cleared
+ *   without scanning the whole array.
+ */
+class PostingsTable {
+
+    /** The postings lists, by term ID. */
+    private PostingsList[] lists = new PostingsList[1024];
+
+    /** The IDs of the terms that have postings, in order of insertion. */
+    private int[] termIDs = new int[256];
+
+    /** Number of terms that have postings. */
+    private int size = 0;
+
+
+    /** Returns the postings of a term, or null if it has none. */
+    PostingsList get( int termID ) {
+        return termID >= 0 && termID < lists.length ? lists[termID] : null;
+    }
+
+
+    /** Sets the postings of a term. */
+    void put( int termID, PostingsList postings ) {
+        if ( termID >= lists.length ) {
+            lists = Arrays.copyOf( lists, Math.max( 2 * lists.length, termID + 1 ));
+        }
+        if ( lists[termID] == null ) {
+            if ( size == termIDs.length ) {
+                termIDs = Arrays.copyOf( termIDs, 2 * size );
+            }
+            termIDs[size++] = termID;
+        }
+        lists[termID] = postings;
+    }
+
+
+    /** Returns the number of terms that have postings. */
+    int size() {
+        return size;
+    }
+
+
+    /** Returns the ID of the ith term that got postings. */
+    int termID( int i ) {
+        return termIDs[i];
+    }
+
+
+    /** Removes all postings, keeping the allocated arrays. */
+    void clear() {
+        for (int i = 0; i < size; i++) {
+            lists[termIDs[i]] = null;
+        }
+        size = 0;
+    }
+}
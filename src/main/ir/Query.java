@@ -13,7 +13,6 @@ import java.util.HashMap;
 import java.util.ArrayList;
 import java.util.StringTokenizer;
 import java.util.stream.Collectors;
-import java.nio.charset.*;
 
 
 /**
@@ -169,8 +168,8 @@ public class Query {
     private Map<String, Integer> getTermFrequencies(String docName, String patterns_file) {
         HashMap<String, Integer> termFreq = new HashMap<String, Integer>();
         try {
-            Reader reader = new InputStreamReader( new FileInputStream(docName), StandardCharsets.UTF_8 );
-            Tokenizer tok = new Tokenizer( reader, true, false, true, patterns_file );
+            Reader reader = Indexer.openDocument( docName );
+            Tokenizer tok = Tokenizer.forThread( reader, true, false, true, patterns_file );
             while ( tok.hasMoreTokens() ) {
                 String token = tok.nextToken();
                 termFreq.compute(token, (key, value) -> (value == null) ? 1 : value + 1);
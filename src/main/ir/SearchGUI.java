@@ -349,48 +349,20 @@ public class SearchGUI extends JFrame {
             JLabel label = new JLabel(description);
             label.setFont( resultFont );
 
+            final int docID = results.get(i).docID;
             MouseAdapter showDocument = new MouseAdapter() {
                 public void mouseClicked(MouseEvent e) {
-                    String fileName = ((JLabel)e.getSource()).getText().split(" ")[1];
+                    String docName = engine.index.docNames.get(docID);
+                    String fileName = displayableFileName(docName);
                     StringBuilder contents = new StringBuilder("Displaying contents of " + fileName + "\n" + MARKER + "\n");
                     String line;
 
-                    Queue<String> fqueue = new LinkedList<>();
-
-                    for (int j = 0, sz = engine.dirNames.size(); j < sz; j++) {
-                        File curDir = new File(engine.dirNames.get(j));
-                        fqueue.offer(curDir.toString());
-
-                        String[] directories = curDir.list(new FilenameFilter() {
-                            @Override
-                            public boolean accept(File current, String name) {
-                                return new File(current, name).isDirectory();
-                            }
-                        });
-
-                        for (String dir : directories) {
-                            fqueue.offer(new File(curDir.toString(), dir).toString());
+                    // Documents inside zip archives are read back through their "archive!/entry" name.
+                    try (BufferedReader br = new BufferedReader(Indexer.openDocument(docName))) {
+                        while ((line = br.readLine()) != null) {
+                            contents.append(line.trim()).append("\n");
                         }
-                    }
-
-                    boolean foundFile = false;
-                    while(!fqueue.isEmpty()) {
-                        String dirName = fqueue.poll();
-                        File file = new File(dirName, fileName);
-
-                        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-                            while ((line = br.readLine()) != null) {
-                                contents.append(line.trim()).append("\n");
-                            }
-                            foundFile = true;
-                            break;
-                        } catch (FileNotFoundException exc) {
-                        } catch (IOException exc) {
-                        } catch (NullPointerException exc) {
-                        }
-                    }
-
-                    if (!foundFile) {
+                    } catch (IOException | NullPointerException exc) {
                         contents.append("No file found\n");
                     }
 
@@ -445,7 +417,7 @@ public class SearchGUI extends JFrame {
      */
     String displayableFileName( String path ) {
         String result = "";
-        StringTokenizer tok = new StringTokenizer( path, File.separator );
+        StringTokenizer tok = new StringTokenizer( path, File.separator + "/" );
         while ( tok.hasMoreTokens() ) {
             result = tok.nextToken();
         }
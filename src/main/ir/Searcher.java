@@ -7,7 +7,12 @@
 
 package ir;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.lang.Math;
 
 /**
@@ -26,6 +31,9 @@ public class Searcher {
 
     /** The ratio to balance between TF-IDF and PageRank scores. */
     double RANK_RATIO = 0.9;
+
+    /** A query term that ends with this stands for the terms that start with the rest of it. */
+    static final String WILDCARD = "*";
     
     /** Constructor */
     public Searcher( Index index, KGramIndex kgIndex, HITSRanker HRanker ) {
@@ -58,51 +66,242 @@ public class Searcher {
         }
     }
 
+    /** Returns true if a query term is a prefix followed by the wildcard. */
+    static boolean isPrefixTerm(String term) {
+        return term.length() > WILDCARD.length() && term.endsWith(WILDCARD);
+    }
+
+    /**
+     *  Returns the terms of the index that a query term stands for: the
+     *  terms that start with its prefix if it is a prefix term, and the term
+     *  itself otherwise. A prefix term is taken as it is if the index cannot
+     *  enumerate its terms.
+     */
+    private List<String> expand(String term) {
+        if (isPrefixTerm(term)) {
+            List<String> terms = index.getTermsWithPrefix(term.substring(0, term.length() - WILDCARD.length()));
+            if (terms != null) {
+                return terms;
+            }
+        }
+        return Collections.singletonList(term);
+    }
+
+    /**
+     *  Returns a query in which every prefix term is replaced by the terms
+     *  it stands for, each with the weight of the prefix term.
+     */
+    private Query expandPrefixTerms(Query query) {
+        Query expanded = new Query();
+        for (Query.QueryTerm queryTerm : query.queryTerm) {
+            for (String term : expand(queryTerm.term)) {
+                expanded.queryTerm.add(new Query.QueryTerm(term, queryTerm.weight));
+            }
+        }
+        return expanded;
+    }
+
+    /**
+     *  Opens a cursor over the postings of a query term, or returns null if
+     *  it is in no document. A prefix term is read through a cursor over
+     *  the union of the postings of the terms it stands for.
+     */
+    private PostingsCursor openCursor(String term, boolean positions) {
+        if (!isPrefixTerm(term)) {
+            return index.getCursor(term, positions);
+        }
+        ArrayList<PostingsCursor> cursors = new ArrayList<>();
+        for (String expanded : expand(term)) {
+            PostingsCursor cursor = index.getCursor(expanded, positions);
+            if (cursor != null) {
+                cursors.add(cursor);
+            }
+        }
+        if (cursors.isEmpty()) {
+            return null;
+        }
+        return cursors.size() == 1 ? cursors.get(0) : new UnionCursor(cursors);
+    }
+
+    /**
+     *  Opens a cursor over the postings and positions of every query term,
+     *  in query order, or returns null if a term is in no document.
+     */
+    private PostingsCursor[] getCursors(Query query) {
+        PostingsCursor[] cursors = new PostingsCursor[query.queryTerm.size()];
+        for (int i = 0; i < cursors.length; i++) {
+            cursors[i] = openCursor(query.queryTerm.get(i).term, true);
+            // If no PostingsList contains the query term
+            if (cursors[i] == null) {
+                return null;
+            }
+        }
+        return cursors;
+    }
+
+    /**
+     *  Moves the cursors, which are sorted rarest first, to the first
+     *  document at or after the target that all of them contain, and
+     *  returns its docID, or NO_MORE_DOCS. The rarest cursor proposes a
+     *  document, and whenever another cursor skips past it, the rarest one
+     *  advances to where that cursor stopped.
+     */
+    static int nextMatch(PostingsCursor[] cursors, int target) {
+        int docID = cursors[0].advance(target);
+        int k = 1;
+        while (docID != PostingsCursor.NO_MORE_DOCS && k < cursors.length) {
+            int other = cursors[k].advance(docID);
+            if (other == docID) {
+                k++;
+            } else {
+                docID = cursors[0].advance(other);
+                k = 1;
+            }
+        }
+        return docID;
+    }
+
+    /**
+     *  Intersects the postings of the query terms, rarest term first. The
+     *  postings are read through cursors, so the other terms are only
+     *  decoded around the documents of the rarest one, and nothing more is
+     *  read once one of them runs out.
+     *
+     *  Terms for which the index keeps a bitmap are not read as postings:
+     *  if all terms have bitmaps, they are intersected by word-wise ANDs,
+     *  and otherwise the documents common to the other terms are looked
+     *  up in the bitmaps. A prefix term is read as the union of the terms
+     *  it stands for.
+     */
     private PostingsList searchIntersection(Query query) {
-        PostingsList result = null;
-        for (Query.QueryTerm term : query.queryTerm) {
-            PostingsList postings = index.getPostings(term.term);
+        int n = query.queryTerm.size();
+        if (n == 0) {
+            return null;
+        }
+        PostingsCursor[] cursors = new PostingsCursor[n];
+        DocBitmap[] bitmaps = new DocBitmap[n];
+        int lists = 0, common = 0;
+        for (Query.QueryTerm queryTerm : query.queryTerm) {
+            DocBitmap bitmap = isPrefixTerm(queryTerm.term) ? null : index.getBitmap(queryTerm.term);
+            if (bitmap != null) {
+                bitmaps[common++] = bitmap;
+                continue;
+            }
+            PostingsCursor cursor = openCursor(queryTerm.term, false);
             // If no PostingsList contains the query term
-            if (postings == null) {
+            if (cursor == null) {
                 return null;
-                // return new PostingsList();
             }
-            // If it is the first intersection
-            if (result == null) {
-                result = postings;
+            cursors[lists++] = cursor;
+        }
+        cursors = Arrays.copyOf(cursors, lists);
+        bitmaps = Arrays.copyOf(bitmaps, common);
+        Arrays.sort(cursors, Comparator.comparingInt(PostingsCursor::cost));
+
+        PostingsList result = null;
+        if (lists == 0) {
+            Arrays.sort(bitmaps, Comparator.comparingInt(DocBitmap::cardinality));
+            DocBitmap docs = bitmaps[0];
+            for (int i = 1; i < common; i++) {
+                docs = docs.and(bitmaps[i]);
             }
-            // If it is NOT the first time
-            else {
-                result = result.intersect(postings);
-                if (result == null) return null;  // Avoid searching after failure.
+            for (int docID = docs.next(0); docID != PostingsCursor.NO_MORE_DOCS; docID = docs.next(docID + 1)) {
+                if (result == null)
+                    result = new PostingsList();
+                result.append(new PostingsEntry(docID, 0));
             }
+            return result;
+        }
+        candidates:
+        for (int docID = nextMatch(cursors, 0); docID != PostingsCursor.NO_MORE_DOCS;
+             docID = nextMatch(cursors, docID + 1)) {
+            for (DocBitmap bitmap : bitmaps) {
+                if (!bitmap.contains(docID)) {
+                    continue candidates;
+                }
+            }
+            if (result == null)
+                result = new PostingsList();
+            result.append(new PostingsEntry(docID, 0));
         }
         return result;
     }
 
+    /**
+     *  Finds the documents that contain the query terms as a phrase. The
+     *  documents with all the terms are found rarest term first, and the
+     *  positions of the terms in each of them are then matched in query
+     *  order, keeping the positions of the last term. A prefix term matches
+     *  at the positions of all the terms it stands for.
+     */
     private PostingsList searchPhrase(Query query) {
-        PostingsList result = null;
+        PostingsCursor[] cursors = getCursors(query);
+        if (cursors == null || cursors.length == 0) {
+            return null;
+        }
+        PostingsCursor[] rarestFirst = cursors.clone();
+        Arrays.sort(rarestFirst, Comparator.comparingInt(PostingsCursor::cost));
+
         int offset = 1;  // where the two terms appear within next 1 word of each other
-        for (Query.QueryTerm term : query.queryTerm) {
-            PostingsList postings = index.getPostings(term.term);
-            // If one of the queried terms is NOT in the doc
-            if (postings == null) {
-                return null;
-                // return new PostingsList();
-            }
-            // If it is the first intersection
-            if (result == null) {
-                result = postings;
+        int[] positions = new int[16], next = new int[16];
+        PostingsList result = null;
+        for (int docID = nextMatch(rarestFirst, 0); docID != PostingsCursor.NO_MORE_DOCS;
+             docID = nextMatch(rarestFirst, docID + 1)) {
+            int count = cursors[0].freq();
+            if (count > positions.length)
+                positions = new int[count];
+            System.arraycopy(cursors[0].positions(), 0, positions, 0, count);
+            for (int i = 1; i < cursors.length && count > 0; i++) {
+                int freq = cursors[i].freq();
+                if (freq > next.length)
+                    next = new int[Math.max(freq, 2 * next.length)];
+                count = PostingsList.positionalIntersect(offset, positions, count,
+                        cursors[i].positions(), freq, next);
+                int[] swap = positions; positions = next; next = swap;
             }
-            // If it is NOT the first time
-            else {
-                result = result.positionalIntersect(postings, offset);
-                if (result == null) return null;  // Avoid searching after failure.
+            if (count > 0) {
+                if (result == null)
+                    result = new PostingsList();
+                result.append(new PostingsEntry(docID, Arrays.copyOf(positions, count), count));
             }
         }
         return result;
     }
 
+    /**
+     *  Finds the documents that contain any of the query terms. The cursors
+     *  of the terms are merged, so that every document is appended once,
+     *  in docID order.
+     */
+    private PostingsList searchUnion(Query query) {
+        PostingsCursor[] cursors = new PostingsCursor[query.queryTerm.size()];
+        int n = 0;
+        for (Query.QueryTerm queryTerm : query.queryTerm) {
+            PostingsCursor cursor = index.getCursor(queryTerm.term, false);
+            if (cursor != null && cursor.nextDoc() != PostingsCursor.NO_MORE_DOCS) {
+                cursors[n++] = cursor;
+            }
+        }
+        PostingsList result = null;
+        while (true) {
+            int docID = PostingsCursor.NO_MORE_DOCS;
+            for (int i = 0; i < n; i++) {
+                docID = Math.min(docID, cursors[i].docID());
+            }
+            if (docID == PostingsCursor.NO_MORE_DOCS) {
+                return result;
+            }
+            if (result == null)
+                result = new PostingsList();
+            result.append(new PostingsEntry(docID, 0));
+            for (int i = 0; i < n; i++) {
+                if (cursors[i].docID() == docID) {
+                    cursors[i].nextDoc();
+                }
+            }
+        }
+    }
+
     /**
      * Performs a ranked search for the given query using the specified
      * ranking and normalization types.
@@ -114,6 +313,8 @@ public class Searcher {
      */
     private PostingsList searchRanked(Query query, RankingType rankingType,
                                       NormalizationType normType) {
+        // Every term a prefix term stands for is scored with its own idf.
+        query = expandPrefixTerms(query);
         // If the query is an empty one
         if (query.queryTerm.isEmpty()) {
             return null;
@@ -121,18 +322,7 @@ public class Searcher {
 
         PostingsList result;
         if (rankingType == RankingType.HITS_RANK) {
-            PostingsList postingsSets = null;
-            for (Query.QueryTerm queryTerm : query.queryTerm) {
-                // The postings list for term t
-                PostingsList postings = index.getPostings(queryTerm.term);
-                for (PostingsEntry entry : postings.getList()) {
-                    // Integrate postings of all terms into Sets
-                    if (postingsSets == null) {
-                        postingsSets = new PostingsList(entry);
-                    }
-                    postingsSets.add(entry);
-                }
-            }
+            PostingsList postingsSets = searchUnion(query);
             if (postingsSets == null) {
                 return null;
             }
@@ -165,14 +355,19 @@ public class Searcher {
         HashMap<Integer, Double> docScores = new HashMap<>();
         for (Query.QueryTerm queryTerm : query.queryTerm) {
             String term = queryTerm.term;
-            // The postings list for term t
-            PostingsList postings = index.getPostings(term);
-            for (PostingsEntry doc : postings.getList()) {
+            // The postings of term t
+            PostingsCursor postings = index.getCursor(term, false);
+            if (postings == null) {
+                continue;
+            }
+            double idf = index.getInvDocFreq(term);
+            for (int docID = postings.nextDoc(); docID != PostingsCursor.NO_MORE_DOCS;
+                 docID = postings.nextDoc()) {
                 // Score = TF-IDF Score * (1 - RANK_RATIO) + PageRank Score * RANK_RATIO
-                double score = this.getRankScore(doc, term, queryTerm.weight, rankingType, normType);
+                double score = this.getRankScore(docID, postings.freq(), idf,
+                        queryTerm.weight, rankingType, normType);
 
                 // If the doc already exists in docScores array, add the SCORE to it.
-                int docID = doc.docID;
                 if (docScores.containsKey(docID)) {
                     docScores.replace(docID, docScores.get(docID) + score);
                 }
@@ -201,8 +396,9 @@ public class Searcher {
      * documents for relevant retrieval.” International Conference on Machine Learning
      * (2005).
      *
-     * @param doc         The PostingsEntry representing the document.
-     * @param term        The query term in query phrase.
+     * @param docID       The document.
+     * @param freq        The number of occurrences of the query term in the document.
+     * @param idf         The inverse document frequency of the query term.
      * @param queryWeight The weight of the query term.
      * @param rankingType The ranking type to use for scoring.
      * @param normType    The normalization type for the score.
@@ -210,19 +406,19 @@ public class Searcher {
      * @return The ranking score for the document.
      * @throws IllegalArgumentException If an invalid ranking type is provided.
      */
-    private double getRankScore (PostingsEntry doc, String term, double queryWeight,
+    private double getRankScore (int docID, int freq, double idf, double queryWeight,
                                  RankingType rankingType, NormalizationType normType) {
         switch (rankingType) {
             case TF_IDF: {
-                return getCosineScore(doc, term, normType) * queryWeight;
+                return getCosineScore(docID, freq, idf, normType) * queryWeight;
             }
             case PAGERANK: {
-                return (Math.exp(10 * index.docRanks.get(doc.docID)) - 0.99) * queryWeight;
+                return (Math.exp(10 * index.docRanks.get(docID)) - 0.99) * queryWeight;
             }
             case COMBINATION: {
                 // Calculate combined score using a weighted combination of TF-IDF and PageRank.
-                double score1 = getCosineScore(doc, term, normType) * queryWeight;
-                double score2 = (Math.exp(10 * index.docRanks.get(doc.docID)) - 0.99) * queryWeight;
+                double score1 = getCosineScore(docID, freq, idf, normType) * queryWeight;
+                double score2 = (Math.exp(10 * index.docRanks.get(docID)) - 0.99) * queryWeight;
                 return score1 * (1 - RANK_RATIO) + score2 * RANK_RATIO;
             }
             default:
@@ -230,18 +426,18 @@ public class Searcher {
         }
     }
 
-    private double getCosineScore(PostingsEntry doc, String term,
+    private double getCosineScore(int docID, int freq, double idf,
                                   NormalizationType normType) {
         double termFreq, docLength;
 
         switch ( normType ) {
             case NUMBER_OF_WORDS:
             case EUCLIDEAN:
-                termFreq = doc.getTermFreqWeight(false);
+                termFreq = PostingsEntry.getTermFreqWeight(freq, false);
                 break;
             case NUMBER_OF_WORDS_WITH_LOG_TF:
             case EUCLIDEAN_WITH_LOG_TF:
-                termFreq = doc.getTermFreqWeight(true);
+                termFreq = PostingsEntry.getTermFreqWeight(freq, true);
                 break;
             default:
                 throw new IllegalArgumentException();
@@ -251,16 +447,91 @@ public class Searcher {
         switch ( normType ) {
             case NUMBER_OF_WORDS:
             case NUMBER_OF_WORDS_WITH_LOG_TF:
-                docLength = (double) index.docLengths.get(doc.docID);
+                docLength = (double) index.docLengths.get(docID);
                 break;
             case EUCLIDEAN:
+                docLength = index.docEucLengths.get(docID);
+                break;
             case EUCLIDEAN_WITH_LOG_TF:
-                docLength = index.docEucLengths.get(doc.docID);
+                // Fall back to the raw-tf length for indexes written without log-tf lengths.
+                docLength = index.docLogEucLengths.getOrDefault(docID,
+                        index.docEucLengths.get(docID));
                 break;
             default:
                 throw new IllegalArgumentException();
         }
 
-        return termFreq * index.getInvDocFreq(term) / docLength;
+        return termFreq * idf / docLength;
+    }
+
+    /**
+     *  A cursor over the union of the postings of several terms, which are
+     *  the terms that a prefix term stands for. The positions of a document
+     *  are the positions of all these terms in it, in increasing order.
+     */
+    private static class UnionCursor implements PostingsCursor {
+        private final PostingsCursor[] cursors;
+        private final int cost;
+        private int docID = -1;
+        private int[] positions = new int[16];
+
+        UnionCursor(List<PostingsCursor> cursors) {
+            this.cursors = cursors.toArray(new PostingsCursor[0]);
+            long cost = 0;
+            for (PostingsCursor cursor : cursors) {
+                cost += cursor.cost();
+            }
+            this.cost = (int) Math.min(cost, Integer.MAX_VALUE);
+        }
+
+        public int cost() {
+            return cost;
+        }
+
+        public int docID() {
+            return docID;
+        }
+
+        public int nextDoc() {
+            return docID == NO_MORE_DOCS ? NO_MORE_DOCS : advance(docID + 1);
+        }
+
+        public int advance(int target) {
+            if (docID >= target) {
+                return docID;
+            }
+            int next = NO_MORE_DOCS;
+            for (PostingsCursor cursor : cursors) {
+                next = Math.min(next, cursor.advance(target));
+            }
+            docID = next;
+            return docID;
+        }
+
+        public int freq() {
+            int freq = 0;
+            for (PostingsCursor cursor : cursors) {
+                if (cursor.docID() == docID) {
+                    freq += cursor.freq();
+                }
+            }
+            return freq;
+        }
+
+        public int[] positions() {
+            int n = 0;
+            for (PostingsCursor cursor : cursors) {
+                if (cursor.docID() == docID) {
+                    int freq = cursor.freq();
+                    if (n + freq > positions.length) {
+                        positions = Arrays.copyOf(positions, Math.max(n + freq, 2 * positions.length));
+                    }
+                    System.arraycopy(cursor.positions(), 0, positions, n, freq);
+                    n += freq;
+                }
+            }
+            Arrays.sort(positions, 0, n);
+            return positions;
+        }
     }
 }
\ No newline at end of file
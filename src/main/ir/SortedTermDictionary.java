@@ -0,0 +1,450 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+/**
+ *   The terms of a persistent index in sorted order, with the place of the
+ *   postings of each term in the data file, stored in the terms file next
+ *   to the dictionary hash table. Unlike the hash table, it can enumerate
+ *   the terms: all terms with a prefix, or all terms in a range, are read
+ *   from disk in order, and two indexes can be merged term by term.
+ *
+ *   The terms are stored in blocks of @code{BLOCK_TERMS} terms. The first
+ *   term of a block is stored whole, and every other term as the number
+ *   of bytes it shares with the term before it and the rest of its UTF-8
+ *   bytes (front coding). Each term is followed by its data file entry:
+ *   the size of its postings, with and without positions, and where they
+ *   start, which the first term of a block stores whole and every other
+ *   term as the gap from the end of the postings of the term before it.
+ *   Since the postings are written in term order, the gap is 0.
+ *   The first term and the offset of every block are stored after the
+ *   blocks, and read into memory as a sparse index of the blocks: a term
+ *   is looked up by a binary search for its block, and a scan of the block.
+ *
+ *   The file starts with a header of the offset of the block index, the
+ *   number of terms and the number of blocks. It is written in place and
+ *   never truncated, since it is mapped, so the header tells where the
+ *   terms end.
+ *
+ *   The terms are ordered as Strings (by @code{String.compareTo}), like
+ *   the sorted runs of block indexing.
+ */
+public class SortedTermDictionary {
+
+    /** The number of terms per block. */
+    static final int BLOCK_TERMS = 32;
+
+    /** The size of the header. */
+    static final int HEADER_SIZE = 20;
+
+    /** The terms file is read through this map. */
+    private final MappedFile map;
+
+    /**
+     *  The characters of the first term of each block, one after the other,
+     *  and where the term of each block starts, so that the binary search
+     *  for a block reads one array instead of a String for every step.
+     */
+    private final char[] firstTerms;
+    private final int[] firstTermStarts;
+
+    /** The offset of each block in the file, and the end of the last block. */
+    private final long[] offsets;
+
+    /** The number of blocks. */
+    private final int blocks;
+
+    /** The number of terms. */
+    private final long size;
+
+
+    private SortedTermDictionary( MappedFile map, String[] firstTerms, long[] offsets, long size ) {
+        this.map = map;
+        this.offsets = offsets;
+        this.blocks = firstTerms.length;
+        this.size = size;
+        this.firstTermStarts = new int[blocks + 1];
+        for (int b = 0; b < blocks; b++) {
+            firstTermStarts[b + 1] = firstTermStarts[b] + firstTerms[b].length();
+        }
+        this.firstTerms = new char[firstTermStarts[blocks]];
+        for (int b = 0; b < blocks; b++) {
+            firstTerms[b].getChars( 0, firstTerms[b].length(), this.firstTerms, firstTermStarts[b] );
+        }
+    }
+
+
+    /**
+     *  Reads the block index of a terms file, or returns null if the file
+     *  has no terms written to it.
+     */
+    static SortedTermDictionary read( MappedFile map ) throws IOException {
+        ByteBuffer header = map.read( 0L, HEADER_SIZE );
+        if ( header == null ) {
+            return null;
+        }
+        long indexStart = header.getLong();
+        long size = header.getLong();
+        int blocks = header.getInt();
+        if ( indexStart < HEADER_SIZE ) {
+            return null;
+        }
+        String[] firstTerms = new String[blocks];
+        long[] offsets = new long[blocks + 1];
+        long ptr = indexStart;
+        for (int b = 0; b < blocks; b++) {
+            // An entry of the index takes more bytes than the longest length code.
+            ByteBuffer buffer = map.read( ptr, PostingsCodec.MAX_VBYTE_LENGTH );
+            int length = PostingsCodec.readVByte( buffer );
+            ByteBuffer entry = map.read( ptr + buffer.position(), length + 8 );
+            byte[] term = new byte[length];
+            entry.get( term );
+            firstTerms[b] = new String( term, StandardCharsets.UTF_8 );
+            offsets[b] = entry.getLong();
+            ptr += buffer.position() + length + 8;
+        }
+        offsets[blocks] = indexStart;
+        return new SortedTermDictionary( map, firstTerms, offsets, size );
+    }
+
+
+    /** Returns the number of terms. */
+    public long size() {
+        return size;
+    }
+
+
+    /**
+     *  Returns the data file entry of a term, or null if the term is not
+     *  in the dictionary.
+     */
+    public PersistentHashedIndex.Entry lookup( String term ) {
+        int block = findBlock( term );
+        if ( block < 0 ) {
+            return null;
+        }
+        // The block is scanned by the bytes of the terms, without decoding them.
+        byte[] key = term.getBytes( StandardCharsets.UTF_8 );
+        Cursor cursor = new Cursor( term, null, null );
+        while ( cursor.decodeNext() ) {
+            if ( Arrays.equals( cursor.bytes, 0, cursor.length, key, 0, key.length )) {
+                return cursor.entry;
+            }
+            if ( !cursor.buffer.hasRemaining() ) {
+                break;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     *  Returns a cursor over the terms from @code{from} on and before
+     *  @code{to}, in order. Either bound may be null, for no bound.
+     */
+    public Cursor range( String from, String to ) {
+        return new Cursor( from, to, null );
+    }
+
+
+    /** Returns a cursor over the terms that start with a prefix, in order. */
+    public Cursor prefix( String prefix ) {
+        return new Cursor( prefix, null, prefix );
+    }
+
+
+    /**
+     *  Returns the block that a term would be in: the last block whose
+     *  first term is not after it, or -1 if the term is before all terms.
+     */
+    private int findBlock( String term ) {
+        int lo = 0, hi = blocks;
+        while ( lo < hi ) {
+            int mid = (lo + hi) >>> 1;
+            if ( compareFirstTerm( mid, term ) <= 0 ) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo - 1;
+    }
+
+
+    /** Compares the first term of a block with a term, like @code{String.compareTo}. */
+    private int compareFirstTerm( int block, String term ) {
+        int start = firstTermStarts[block];
+        int length = firstTermStarts[block + 1] - start;
+        int n = Math.min( length, term.length() );
+        for (int i = 0; i < n; i++) {
+            char c = firstTerms[start + i];
+            if ( c != term.charAt( i )) {
+                return c - term.charAt( i );
+            }
+        }
+        return length - term.length();
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *   A cursor over the terms of a range, which reads and decodes one
+     *   block at a time.
+     */
+    public class Cursor {
+
+        /** The first term to return, until it has been passed, or null. */
+        private String from;
+
+        /** The term to stop before, or null. */
+        private final String to;
+
+        /** The prefix of the terms to return, or null. */
+        private final String prefix;
+
+        /** The block being read, and the terms of it that are left to read. */
+        private int block;
+        private ByteBuffer buffer = null;
+
+        /** The UTF-8 bytes of the current term. */
+        private byte[] bytes = new byte[64];
+        private int length = 0;
+
+        private String term = null;
+        private PersistentHashedIndex.Entry entry = null;
+
+        private boolean exhausted = false;
+
+
+        private Cursor( String from, String to, String prefix ) {
+            this.from = from;
+            this.to = to;
+            this.prefix = prefix;
+            // The block before the block of the first term, where the scan starts.
+            this.block = from == null ? -1 : Math.max( 0, findBlock( from )) - 1;
+        }
+
+
+        /**
+         *  Moves to the next term of the range, and returns it, or null if
+         *  there are no more terms in the range.
+         */
+        public String next() {
+            while ( !exhausted ) {
+                if ( !decodeNext() ) {
+                    break;
+                }
+                term = new String( bytes, 0, length, StandardCharsets.UTF_8 );
+                if ( from != null ) {
+                    if ( term.compareTo( from ) < 0 ) {
+                        continue;
+                    }
+                    from = null;
+                }
+                if ( (to != null && term.compareTo( to ) >= 0) || (prefix != null && !term.startsWith( prefix )) ) {
+                    break;
+                }
+                return term;
+            }
+            exhausted = true;
+            term = null;
+            entry = null;
+            return null;
+        }
+
+
+        /** Returns the current term. */
+        public String term() {
+            return term;
+        }
+
+
+        /**
+         *  Returns the data file entry of the current term, which points at
+         *  the term stored before its postings. Its fingerprint is not stored
+         *  in the terms file, and is 0.
+         */
+        public PersistentHashedIndex.Entry entry() {
+            return entry;
+        }
+
+
+        /** Decodes the bytes and the entry of the next term of the file, or returns false at the end. */
+        private boolean decodeNext() {
+            boolean first = false;
+            if ( buffer == null || !buffer.hasRemaining() ) {
+                if ( ++block >= blocks ) {
+                    return false;
+                }
+                try {
+                    buffer = map.read( offsets[block], (int) (offsets[block + 1] - offsets[block]) );
+                } catch ( IOException e ) {
+                    System.err.println("An error occurred: " + e.getMessage());
+                    buffer = null;
+                }
+                if ( buffer == null ) {
+                    return false;
+                }
+                first = true;
+            }
+            int shared = first ? 0 : PostingsCodec.readVByte( buffer );
+            int suffix = PostingsCodec.readVByte( buffer );
+            length = shared + suffix;
+            if ( length > bytes.length ) {
+                bytes = Arrays.copyOf( bytes, Math.max( length, 2 * bytes.length ));
+            }
+            buffer.get( bytes, shared, suffix );
+            long begin = first ? buffer.getLong() : entry.begin + entry.size + PostingsCodec.readVByte( buffer );
+            int size = PostingsCodec.readVByte( buffer );
+            int docsSize = PostingsCodec.readVByte( buffer );
+            entry = new PersistentHashedIndex.Entry( 0L, begin, size, docsSize );
+            return true;
+        }
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *   Writes the terms of an index to a terms file, in increasing order.
+     */
+    static class Writer {
+
+        private final RandomAccessFile file;
+
+        /** The block being encoded. */
+        private ByteBuffer block = ByteBuffer.allocate( 4096 );
+
+        /** The number of terms in the block being encoded. */
+        private int blockTerms = 0;
+
+        /** The offset in the file of the block being encoded. */
+        private long ptr = HEADER_SIZE;
+
+        /** The first term and the offset of each block. */
+        private final ArrayList<String> firstTerms = new ArrayList<String>();
+        private final ArrayList<Long> offsets = new ArrayList<Long>();
+
+        /** The UTF-8 bytes of the last term, the last term and its entry. */
+        private byte[] last = new byte[0];
+        private String lastTerm = null;
+        private PersistentHashedIndex.Entry lastEntry = null;
+
+        private long size = 0L;
+
+
+        Writer( RandomAccessFile file ) {
+            this.file = file;
+        }
+
+
+        /**
+         *  Appends a term and its data file entry. The terms must be added
+         *  in increasing order, and their postings must be in the same
+         *  order in the data file.
+         */
+        void add( String term, PersistentHashedIndex.Entry entry ) throws IOException {
+            if ( lastTerm != null && term.compareTo( lastTerm ) <= 0 ) {
+                throw new IllegalArgumentException( "Terms must be added in increasing order: " + term + " after " + lastTerm );
+            }
+            if ( blockTerms == BLOCK_TERMS ) {
+                flush();
+            }
+            byte[] bytes = term.getBytes( StandardCharsets.UTF_8 );
+            ensure( bytes.length + 8 + 4 * PostingsCodec.MAX_VBYTE_LENGTH );
+            if ( blockTerms == 0 ) {
+                firstTerms.add( term );
+                offsets.add( ptr );
+                PostingsCodec.writeVByte( block, bytes.length );
+                block.put( bytes );
+                block.putLong( entry.begin );
+            } else {
+                long gap = entry.begin - (lastEntry.begin + lastEntry.size);
+                if ( gap < 0 || gap > Integer.MAX_VALUE ) {
+                    throw new IllegalArgumentException( "The postings must be written in term order." );
+                }
+                int shared = 0;
+                int max = Math.min( bytes.length, last.length );
+                while ( shared < max && bytes[shared] == last[shared] ) {
+                    shared++;
+                }
+                PostingsCodec.writeVByte( block, shared );
+                PostingsCodec.writeVByte( block, bytes.length - shared );
+                block.put( bytes, shared, bytes.length - shared );
+                PostingsCodec.writeVByte( block, (int) gap );
+            }
+            PostingsCodec.writeVByte( block, entry.size );
+            PostingsCodec.writeVByte( block, entry.docsSize );
+            blockTerms++;
+            last = bytes;
+            lastTerm = term;
+            lastEntry = entry;
+            size++;
+        }
+
+
+        /** Writes the last block, the block index and the header. */
+        void finish() throws IOException {
+            flush();
+            long indexStart = ptr;
+            for (int b = 0; b < firstTerms.size(); b++) {
+                byte[] bytes = firstTerms.get( b ).getBytes( StandardCharsets.UTF_8 );
+                ensure( bytes.length + 8 + PostingsCodec.MAX_VBYTE_LENGTH );
+                PostingsCodec.writeVByte( block, bytes.length );
+                block.put( bytes );
+                block.putLong( offsets.get( b ));
+                if ( block.position() > 4096 ) {
+                    write();
+                }
+            }
+            write();
+            ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+            header.putLong( indexStart );
+            header.putLong( size );
+            header.putInt( firstTerms.size() );
+            file.seek( 0L );
+            file.write( header.array() );
+        }
+
+
+        /** Writes the block being encoded, if any. */
+        private void flush() throws IOException {
+            write();
+            blockTerms = 0;
+        }
+
+
+        /** Writes the encoded bytes at the end of the terms written so far. */
+        private void write() throws IOException {
+            file.seek( ptr );
+            file.write( block.array(), 0, block.position() );
+            ptr += block.position();
+            block.clear();
+        }
+
+
+        /** Makes room for the given number of bytes in the block. */
+        private void ensure( int bytes ) {
+            if ( block.remaining() < bytes ) {
+                ByteBuffer larger = ByteBuffer.allocate( Math.max( block.position() + bytes, 2 * block.capacity() ));
+                block.flip();
+                larger.put( block );
+                block = larger;
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+
+/**
+ *   Assigns dense integer IDs to terms. There is one dictionary shared by
+ *   all indexes (see @code{Index.dictionary}), so a term is hashed and
+ *   stored once when it is first seen during tokenization, and the inverted
+ *   index, the k-gram index and the searcher all address it by its ID.
+ *
+ *   The terms are stored in an array indexed by term ID, and found through
+ *   an open-addressing hash table of IDs. Terms can be looked up directly
+ *   from the character buffer of a tokenizer, without creating a String.
+ *
+ *   Documents are inverted by several threads, which look up terms far
+ *   more often than they add new ones. Lookups therefore take no lock:
+ *   the slots of the table are read and written with volatile semantics,
+ *   and a term is stored in the array before its slot is set, so a thread
+ *   that finds an ID also sees its term. Only a new term is added under
+ *   the lock, after probing once more. A larger table or array is filled
+ *   before it replaces the old one, and the old one stays valid for the
+ *   threads that still read it; a term they miss there is looked up again
+ *   under the lock before it is added.
+ */
+public class TermDictionary {
+
+    /** The terms, by term ID. */
+    private volatile String[] terms = new String[1024];
+
+    /** Hash table from hash codes to (term ID + 1), or 0 for an empty slot. */
+    private volatile AtomicIntegerArray table = new AtomicIntegerArray( 2048 );
+
+    /** Number of terms, and the next term ID. */
+    private volatile int size = 0;
+
+
+    /** Spreads the bits of a hash code over the slots of the table. */
+    private static int spread( int hash ) {
+        return hash ^ (hash >>> 16);
+    }
+
+
+    /**
+     *  Returns the ID of the term, which is added to the dictionary if it
+     *  is not already there.
+     */
+    public int add( String term ) {
+        int id = find( term, term.hashCode() );
+        return id >= 0 ? id : insert( term );
+    }
+
+
+    /**
+     *  Returns the ID of the term @code{chars[start..start+length)}, which
+     *  is added to the dictionary if it is not already there. A String is
+     *  only created for a new term.
+     */
+    public int add( char[] chars, int start, int length ) {
+        int hash = 0;
+        for (int i = start; i < start + length; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        AtomicIntegerArray table = this.table;
+        int mask = table.length() - 1;
+        for (int slot = spread( hash ) & mask; ; slot = (slot + 1) & mask) {
+            int id = table.get( slot ) - 1;
+            if ( id < 0 ) {
+                return insert( new String( chars, start, length ));
+            }
+            String term = terms[id];
+            if ( term.hashCode() == hash && equals( term, chars, start, length )) {
+                return id;
+            }
+        }
+    }
+
+
+    /**
+     *  Returns the ID of the term, or -1 if it is not in the dictionary.
+     */
+    public int lookup( String term ) {
+        int id = find( term, term.hashCode() );
+        return id >= 0 ? id : -1;
+    }
+
+
+    /** Returns the term with the given ID, or null if there is no such term. */
+    public String term( int termID ) {
+        return termID >= 0 && termID < size ? terms[termID] : null;
+    }
+
+
+    /** Returns the number of terms, which is also the next term ID. */
+    public int size() {
+        return size;
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    private static boolean equals( String term, char[] chars, int start, int length ) {
+        if ( term.length() != length ) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if ( term.charAt( i ) != chars[start + i] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     *  Returns the ID of the term, or, if it is not in the table, -1 minus
+     *  the empty slot where the probe ended.
+     */
+    private int find( String term, int hash ) {
+        AtomicIntegerArray table = this.table;
+        int mask = table.length() - 1;
+        for (int slot = spread( hash ) & mask; ; slot = (slot + 1) & mask) {
+            int id = table.get( slot ) - 1;
+            if ( id < 0 ) {
+                return -1 - slot;
+            }
+            String other = terms[id];
+            if ( other.hashCode() == hash && other.equals( term )) {
+                return id;
+            }
+        }
+    }
+
+
+    /**
+     *  Gives the next term ID to a term that was not found without the
+     *  lock, unless another thread has added it in the meantime.
+     */
+    private synchronized int insert( String term ) {
+        int found = find( term, term.hashCode() );
+        if ( found >= 0 ) {
+            return found;
+        }
+        int id = size;
+        if ( id == terms.length ) {
+            terms = Arrays.copyOf( terms, 2 * id );
+        }
+        terms[id] = term;
+        table.set( -1 - found, id + 1 );
+        size = id + 1;
+        if ( 2 * size > table.length() ) {
+            rehash();
+        }
+        return id;
+    }
+
+
+    /** Doubles the size of the hash table. */
+    private void rehash() {
+        AtomicIntegerArray larger = new AtomicIntegerArray( 2 * table.length() );
+        int mask = larger.length() - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = spread( terms[id].hashCode() ) & mask;
+            while ( larger.get( slot ) != 0 ) {
+                slot = (slot + 1) & mask;
+            }
+            larger.set( slot, id + 1 );
+        }
+        table = larger;
+    }
+}
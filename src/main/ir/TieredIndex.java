@@ -0,0 +1,398 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+
+/*
+ *   Implements incremental indexing on top of a persistent base index.
+ *
+ *   Documents that are new or modified since the base index was built are
+ *   indexed into a small delta index, which is a PersistentHashedIndex of
+ *   its own stored in a subdirectory of the base index. Their docIDs follow
+ *   the docIDs of the base index. Base documents that have been modified
+ *   or deleted are masked by a bitset of live documents.
+ *
+ *   The postings of a term are the live postings of the base index followed
+ *   by the postings of the delta index, so searching this index looks like
+ *   searching a single index to the Searcher. The delta is always built
+ *   against the base index, so it is rebuilt from scratch on every update
+ *   until the next full re-index.
+ */
+public class TieredIndex implements Index {
+
+    /** The directory where the delta index is stored. */
+    public static final String DELTA_DIR = PersistentHashedIndex.INDEXDIR + "/delta";
+
+    /** The live docs file name */
+    public static final String LIVEDOCS_FNAME = "liveDocs";
+
+    /** The base index, which is only read. */
+    PersistentHashedIndex base;
+
+    /** The delta index containing new and modified documents. */
+    PersistentHashedIndex delta;
+
+    /** Bit i is set if base document i is still live. */
+    BitSet liveDocs = new BitSet();
+
+    /** The first docID of the delta index. */
+    int firstDeltaDocID;
+
+    /** The bitmaps of the common terms, built when they are first asked for. */
+    private final BitmapTable bitmaps = new BitmapTable();
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Constructor. Opens the base index, and either loads the delta index or
+     *  discards it to build a new one.
+     *
+     *  @param blockBudget The heap budget of an in-memory block of the delta.
+     *  @param rebuild     If true, the delta index is built anew.
+     */
+    public TieredIndex( long blockBudget, boolean rebuild ) {
+        base = new PersistentHashedIndex( PersistentHashedIndex.INDEXDIR, blockBudget );
+        firstDeltaDocID = 0;
+        for (int docID : docNames.keySet()) {
+            firstDeltaDocID = Math.max( firstDeltaDocID, docID + 1 );
+        }
+        if (rebuild) {
+            deleteDelta();
+            liveDocs.set( 0, firstDeltaDocID );
+            for (int docID = 0; docID < firstDeltaDocID; docID++) {
+                if (!docNames.containsKey( docID )) {
+                    liveDocs.clear( docID );
+                }
+            }
+        }
+        else {
+            readLiveDocs();
+            for (int docID = 0; docID < firstDeltaDocID; docID++) {
+                if (!liveDocs.get( docID )) {
+                    forget( docID );
+                }
+            }
+        }
+        // A delta that has not been written yet has no docInfo.
+        delta = new PersistentHashedIndex( DELTA_DIR, blockBudget, false );
+        delta.firstDocID = firstDeltaDocID;
+    }
+
+
+    /** Returns true if a delta index has been written next to the base index. */
+    public static boolean exists() {
+        return new File( DELTA_DIR, LIVEDOCS_FNAME ).exists();
+    }
+
+
+    /** Deletes the files of the delta index, e.g. before a full re-index. */
+    public static void deleteDelta() {
+        File[] files = new File( DELTA_DIR ).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Marks a base document as deleted. It is masked from the postings and
+     *  removed from the document information.
+     */
+    public void delete( int docID ) {
+        if (docID < firstDeltaDocID) {
+            bitmaps.clear();
+            liveDocs.clear( docID );
+            forget( docID );
+        }
+    }
+
+
+    /** Removes the information about a document that is no longer live. */
+    private void forget( int docID ) {
+        docNames.remove( docID );
+        docLengths.remove( docID );
+        docEucLengths.remove( docID );
+        docLogEucLengths.remove( docID );
+        docModified.remove( docID );
+        docChecksums.remove( docID );
+    }
+
+
+    /**
+     *  Inserts this token in the delta index.
+     */
+    public void insert( String token, int docID, int offset ) {
+        bitmaps.clear();
+        delta.insert( token, docID, offset );
+    }
+
+
+    /**
+     *  Inserts the posting of a document in the delta index.
+     */
+    public void insert( int termID, PostingsEntry entry ) {
+        bitmaps.clear();
+        delta.insert( termID, entry );
+    }
+
+
+    /**
+     *  Appends the postings of a term to the delta index.
+     */
+    public void merge( int termID, PostingsList postings ) {
+        bitmaps.clear();
+        delta.merge( termID, postings );
+    }
+
+
+    /**
+     *  Visits every term of the delta index with its postings in the whole
+     *  index, i.e. including the live postings of the base index.
+     */
+    public void forEachTerm( BiConsumer<String,PostingsList> visitor ) {
+        delta.forEachTerm( (token, postings) -> visitor.accept( token, combine( token, postings )));
+    }
+
+
+    /**
+     *  Visits every term of the delta index with its postings in the delta
+     *  index, and the number of documents that contain it in the whole
+     *  index. The base postings are not read.
+     */
+    public void forEachTerm( TermVisitor visitor ) {
+        delta.forEachTerm( (token, postings) -> visitor.accept( token, postings, getBaseDocFreq( token ) + postings.size() ));
+    }
+
+
+    /**
+     *  Returns the live postings of the base index followed by the postings
+     *  of the delta index, or null if the term occurs in neither.
+     */
+    public PostingsList getPostings( String token ) {
+        return combine( token, delta.getPostings( token ));
+    }
+
+
+    /**
+     *  Returns a cursor over the live postings of the base index followed by
+     *  the postings of the delta index, or null if the term occurs in
+     *  neither. The postings are read through the cursors of the two
+     *  indexes, and the base documents that are masked are skipped.
+     */
+    public PostingsCursor getCursor( String token ) {
+        return getCursor( token, true );
+    }
+
+
+    /**
+     *  Returns a cursor over the postings of a term in the whole index, or
+     *  null if the term occurs in neither index. Without positions, the
+     *  positions are left unread in both indexes.
+     */
+    public PostingsCursor getCursor( String token, boolean positions ) {
+        PostingsCursor baseCursor = base.getCursor( token, positions );
+        PostingsCursor deltaCursor = delta.getCursor( token, positions );
+        if (baseCursor == null) {
+            return deltaCursor;
+        }
+        return new LiveCursor( baseCursor, deltaCursor );
+    }
+
+
+    /**
+     *  Returns the number of documents that contain a term. The masked base
+     *  documents are included, which only the idf sees: the postings that
+     *  are returned skip them.
+     */
+    public int getDocFreq( String token ) {
+        return getBaseDocFreq( token ) + delta.getDocFreq( token );
+    }
+
+
+    /**
+     *  Returns a bitmap of the live documents that contain a term, if it
+     *  occurs in a large fraction of them, or null.
+     */
+    public DocBitmap getBitmap( String token ) {
+        return bitmaps.get( this, token );
+    }
+
+
+    /**
+     *  Returns the terms of the base and delta indexes that start with a
+     *  prefix, in sorted order. A base term may have no live documents left.
+     */
+    public List<String> getTermsWithPrefix( String prefix ) {
+        List<String> baseTerms = base.getTermsWithPrefix( prefix );
+        List<String> deltaTerms = delta.getTermsWithPrefix( prefix );
+        ArrayList<String> terms = new ArrayList<String>( baseTerms.size() + deltaTerms.size() );
+        int i = 0, j = 0;
+        while (i < baseTerms.size() || j < deltaTerms.size()) {
+            int cmp = i == baseTerms.size() ? 1 : j == deltaTerms.size() ? -1 : baseTerms.get( i ).compareTo( deltaTerms.get( j ));
+            if (cmp <= 0) {
+                terms.add( baseTerms.get( i++ ));
+                if (cmp == 0) {
+                    j++;
+                }
+            } else {
+                terms.add( deltaTerms.get( j++ ));
+            }
+        }
+        return terms;
+    }
+
+
+    /**
+     *  Returns the number of base documents that contain a term, as stored
+     *  at the head of its postings list. The base is not rewritten on an
+     *  update, so masked documents are counted until the next full re-index.
+     */
+    private int getBaseDocFreq( String token ) {
+        return base.getDocFreq( token );
+    }
+
+
+    /**
+     *  Combines the live base postings of a term with the given delta postings.
+     */
+    private PostingsList combine( String token, PostingsList deltaPostings ) {
+        PostingsCursor cursor = base.getCursor( token, true );
+        PostingsList result = null;
+        if (cursor != null) {
+            for (int docID = cursor.nextDoc(); docID != PostingsCursor.NO_MORE_DOCS; docID = cursor.nextDoc()) {
+                if (liveDocs.get( docID )) {
+                    if (result == null)
+                        result = new PostingsList();
+                    result.append( new PostingsEntry( docID, Arrays.copyOf( cursor.positions(), cursor.freq() ), cursor.freq() ));
+                }
+            }
+        }
+        if (deltaPostings != null) {
+            if (result == null)
+                return deltaPostings;
+            result.append( deltaPostings );
+        }
+        return result;
+    }
+
+
+    /**
+     *  A cursor over the live postings of a term in the base index followed
+     *  by its postings in the delta index, whose docIDs are all larger.
+     */
+    private class LiveCursor implements PostingsCursor {
+        private PostingsCursor baseCursor;
+        private final PostingsCursor deltaCursor;
+        private final int cost;
+        private PostingsCursor current;
+        private int docID = -1;
+
+        LiveCursor( PostingsCursor baseCursor, PostingsCursor deltaCursor ) {
+            this.baseCursor = baseCursor;
+            this.deltaCursor = deltaCursor;
+            this.cost = baseCursor.cost() + (deltaCursor == null ? 0 : deltaCursor.cost());
+        }
+
+        public int cost() {
+            return cost;
+        }
+
+        public int docID() {
+            return docID;
+        }
+
+        public int nextDoc() {
+            return advance( docID + 1 );
+        }
+
+        public int advance( int target ) {
+            if (docID >= target) {
+                return docID;
+            }
+            if (baseCursor != null) {
+                int doc = baseCursor.advance( target );
+                while (doc != NO_MORE_DOCS && !liveDocs.get( doc )) {
+                    doc = baseCursor.nextDoc();
+                }
+                if (doc != NO_MORE_DOCS) {
+                    current = baseCursor;
+                    return docID = doc;
+                }
+                baseCursor = null;
+            }
+            current = deltaCursor;
+            return docID = deltaCursor == null ? NO_MORE_DOCS : deltaCursor.advance( target );
+        }
+
+        public int freq() {
+            return current.freq();
+        }
+
+        public int[] positions() {
+            return current.positions();
+        }
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Writes the live docs bitset to the delta directory.
+     */
+    private void writeLiveDocs() {
+        try ( ObjectOutputStream out = new ObjectOutputStream(
+                new FileOutputStream( DELTA_DIR + "/" + LIVEDOCS_FNAME ))) {
+            out.writeInt( firstDeltaDocID );
+            out.writeObject( liveDocs );
+        } catch ( IOException e ) {
+            System.err.println("An error occurred: " + e.getMessage());
+        }
+    }
+
+
+    /**
+     *  Reads the live docs bitset from the delta directory. If there is no
+     *  delta, all base documents are live.
+     */
+    private void readLiveDocs() {
+        liveDocs.set( 0, firstDeltaDocID );
+        try ( ObjectInputStream in = new ObjectInputStream(
+                new FileInputStream( DELTA_DIR + "/" + LIVEDOCS_FNAME ))) {
+            int baseDocs = in.readInt();
+            if (baseDocs != firstDeltaDocID) {
+                System.err.println( "Warning: the delta index does not belong to this base index." );
+                return;
+            }
+            liveDocs = (BitSet) in.readObject();
+        } catch ( FileNotFoundException e ) {
+            // No delta has been written yet.
+        } catch ( IOException | ClassNotFoundException e ) {
+            System.err.println("An error occurred: " + e.getMessage());
+        }
+    }
+
+
+    /**
+     *  Writes the delta index and the live docs to disk.
+     */
+    public void cleanup() {
+        System.out.println( (firstDeltaDocID - liveDocs.cardinality()) + " base documents masked" );
+        delta.cleanup();
+        writeLiveDocs();
+    }
+}
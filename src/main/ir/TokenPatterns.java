@@ -0,0 +1,279 @@
+/*
+ *  This file is part of the computer assignment for the
+ *  Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+
+/**
+ *  The compiled patterns for non-standard words (e-mail addresses, etc.)
+ *  of a patterns file. A file is read and compiled only once, and the
+ *  result is shared by all tokenizers using it. Compiled patterns are
+ *  thread-safe; every tokenizer creates its own matchers.
+ *
+ *  Most candidate tokens are plain words. Every pattern is therefore
+ *  analyzed when it is compiled: if each of its matches must contain a
+ *  punctuation character, it cannot match within a candidate without
+ *  punctuation, and the tokenizer skips it for such candidates.
+ */
+public class TokenPatterns {
+
+    /** The patterns read so far, by file name. */
+    private static final ConcurrentHashMap<String,TokenPatterns> cache = new ConcurrentHashMap<String,TokenPatterns>();
+
+    /** The patterns, in the order in which they are tried. */
+    final Pattern[] patterns;
+
+    /** True for the patterns that can only match text containing punctuation. */
+    final boolean[] needsPunctuation;
+
+
+    /**
+     *  Returns the patterns of a file, reading and compiling them the first
+     *  time the file is asked for.
+     */
+    public static TokenPatterns forFile( String filename ) {
+        return cache.computeIfAbsent( filename, TokenPatterns::new );
+    }
+
+
+    /**
+     *  Reads the patterns that match non-standard words.
+     */
+    private TokenPatterns( String filename ) {
+        ArrayList<Pattern> list = new ArrayList<Pattern>();
+        String line = null;
+        try ( BufferedReader in = new BufferedReader( new FileReader( filename ))) {
+            while (( line = in.readLine()) != null ) {
+                line = line.trim();
+                if ( !line.startsWith( "//" ) && !line.isEmpty()) {
+                    list.add( Pattern.compile( line ));
+                }
+            }
+        }
+        catch ( IOException e ) {
+            System.err.println( "Warning: IOException reading the regular expressions from file" );
+        }
+        catch ( PatternSyntaxException e ) {
+            System.err.println( "ERROR: Malformed regular expression: " + line );
+        }
+        patterns = list.toArray( new Pattern[0] );
+        needsPunctuation = new boolean[patterns.length];
+        for ( int i=0; i<patterns.length; i++ ) {
+            needsPunctuation[i] = new Analyzer( patterns[i].pattern() ).needsPunctuation();
+        }
+    }
+
+
+    /** Returns a new matcher for each pattern, for use by a single thread. */
+    Matcher[] matchers() {
+        Matcher[] matchers = new Matcher[patterns.length];
+        for ( int i=0; i<patterns.length; i++ ) {
+            matchers[i] = patterns[i].matcher( "" );
+        }
+        return matchers;
+    }
+
+
+    /**
+     *  A conservative analysis of the syntax of a regular expression, which
+     *  decides whether every match contains a punctuation character. Any
+     *  construct it does not understand counts as one that can match
+     *  without punctuation.
+     */
+    private static class Analyzer {
+
+        /** Thrown on syntax the analysis does not handle. */
+        private static class Unsupported extends RuntimeException {
+            private static final long serialVersionUID = 1L;
+
+            Unsupported() {
+                super( null, null, false, false );
+            }
+        }
+
+        private final String regex;
+        private int pos = 0;
+
+        Analyzer( String regex ) {
+            this.regex = regex;
+        }
+
+        boolean needsPunctuation() {
+            try {
+                boolean result = alternation();
+                return result && pos == regex.length();
+            } catch ( Unsupported | IndexOutOfBoundsException | NumberFormatException e ) {
+                return false;
+            }
+        }
+
+        /** Every alternative must contain punctuation. */
+        private boolean alternation() {
+            boolean result = sequence();
+            while ( pos < regex.length() && regex.charAt( pos ) == '|' ) {
+                pos++;
+                result &= sequence();
+            }
+            return result;
+        }
+
+        /** Some required element of the sequence must be punctuation. */
+        private boolean sequence() {
+            boolean result = false;
+            while ( pos < regex.length() && regex.charAt( pos ) != '|' && regex.charAt( pos ) != ')' ) {
+                boolean punctuation = atom();
+                boolean required = quantifier();
+                result |= punctuation && required;
+            }
+            return result;
+        }
+
+        /** Parses an optional quantifier, and returns true if it requires at least one occurrence. */
+        private boolean quantifier() {
+            if ( pos == regex.length() ) {
+                return true;
+            }
+            boolean required;
+            char c = regex.charAt( pos );
+            if ( c == '?' || c == '*' ) {
+                pos++;
+                required = false;
+            } else if ( c == '+' ) {
+                pos++;
+                required = true;
+            } else if ( c == '{' ) {
+                int end = regex.indexOf( '}', pos );
+                if ( end < 0 ) {
+                    throw new Unsupported();
+                }
+                String min = regex.substring( pos + 1, end ).split( ",", -1 )[0].trim();
+                required = Integer.parseInt( min ) > 0;
+                pos = end + 1;
+            } else {
+                return true;
+            }
+            // Lazy and possessive quantifiers
+            if ( pos < regex.length() && ( regex.charAt( pos ) == '?' || regex.charAt( pos ) == '+' )) {
+                pos++;
+            }
+            return required;
+        }
+
+        /** Parses an atom, and returns true if everything it matches is punctuation. */
+        private boolean atom() {
+            char c = regex.charAt( pos++ );
+            switch ( c ) {
+            case '(':
+                if ( regex.charAt( pos ) == '?' ) {
+                    char kind = regex.charAt( pos + 1 );
+                    if ( kind == ':' ) {
+                        pos += 2;
+                    } else if ( kind == '<' && Character.isLetter( regex.charAt( pos + 2 ))) {
+                        pos = regex.indexOf( '>', pos ) + 1;
+                    } else {
+                        // Lookaround, flags, atomic groups etc.
+                        throw new Unsupported();
+                    }
+                }
+                boolean group = alternation();
+                if ( regex.charAt( pos++ ) != ')' ) {
+                    throw new Unsupported();
+                }
+                return group;
+            case '[':
+                return characterClass();
+            case '\\':
+                return isPunctuation( escaped() );
+            case '.': case '^': case '$':
+                return false;
+            case ')': case '|': case '*': case '+': case '?': case '{':
+                throw new Unsupported();
+            default:
+                return isPunctuation( c );
+            }
+        }
+
+        /**
+         *  Parses an escape, and returns the character it stands for, or -1
+         *  for character classes such as \\w and other escapes that do not
+         *  stand for a single punctuation character.
+         */
+        private int escaped() {
+            char c = regex.charAt( pos++ );
+            if ( !Character.isLetterOrDigit( c )) {
+                return c;
+            }
+            switch ( c ) {
+            case 'p': case 'P': case 'x':
+                if ( regex.charAt( pos ) == '{' ) {
+                    pos = regex.indexOf( '}', pos ) + 1;
+                } else {
+                    pos += c == 'x' ? 2 : 1;
+                }
+                break;
+            case 'u':
+                pos += 4;
+                break;
+            case 'c':
+                pos++;
+                break;
+            case 'k':
+                pos = regex.indexOf( '>', pos ) + 1;
+                break;
+            case 'Q':
+                throw new Unsupported();
+            default:
+                while ( Character.isDigit( c ) && pos < regex.length() && Character.isDigit( regex.charAt( pos ))) {
+                    pos++;
+                }
+            }
+            return -1;
+        }
+
+        /** Parses a character class, and returns true if all its members are punctuation. */
+        private boolean characterClass() {
+            if ( regex.charAt( pos ) == '^' ) {
+                throw new Unsupported();
+            }
+            boolean result = true;
+            boolean first = true;
+            while ( first || regex.charAt( pos ) != ']' ) {
+                first = false;
+                char c = regex.charAt( pos++ );
+                if ( c == '[' || ( c == '&' && regex.charAt( pos ) == '&' )) {
+                    throw new Unsupported();
+                }
+                int lo = c == '\\' ? escaped() : c;
+                int hi = lo;
+                if ( regex.charAt( pos ) == '-' && regex.charAt( pos + 1 ) != ']' ) {
+                    pos++;
+                    c = regex.charAt( pos++ );
+                    hi = c == '\\' ? escaped() : c;
+                }
+                if ( lo < 0 || hi < 0 ) {
+                    result = false;
+                }
+                for ( int x=lo; x<=hi; x++ ) {
+                    result &= isPunctuation( x );
+                }
+            }
+            pos++;
+            return result;
+        }
+
+        private static boolean isPunctuation( int c ) {
+            return c >= 0 && Tokenizer.punctuation( (char) c );
+        }
+    }
+}
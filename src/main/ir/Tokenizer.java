@@ -9,14 +9,11 @@ package ir;
 
 import java.io.Reader;
 import java.io.IOException;
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.util.List;
 import java.util.Arrays;
 import java.util.ArrayList;
-import java.util.regex.Pattern;
+import java.util.HashMap;
 import java.util.regex.Matcher;
-import java.util.regex.PatternSyntaxException;
 import java.lang.System;
 
 
@@ -50,14 +47,21 @@ public class Tokenizer {
      */
     public static final int BUFFER_LENGTH = 100001;
 
+    /**
+     *  The size of the buffer of a new tokenizer. Most documents are much
+     *  smaller than @code{BUFFER_LENGTH}, so the buffer starts small and is
+     *  refilled as the input is read. It only grows if a token does not fit.
+     */
+    public static final int INITIAL_BUFFER_LENGTH = 8192;
+
     /** The reader from where tokens are read. */
     Reader reader;
     
     /** 
-     *  Characters are read @code{BUFFER_LENGTH} characters at a
+     *  Characters are read @code{buf.length} characters at a
      *  time into @code{buf}.
      */
-    char[] buf = new char[BUFFER_LENGTH];
+    char[] buf = new char[INITIAL_BUFFER_LENGTH];
 
     /** The current position in the buffer. */
     int ptr = 0;
@@ -65,19 +69,91 @@ public class Tokenizer {
     /** Starting position of current token, or -1 if we're between tokens. */
     int token_start = -1;
 
-    /** The next tokens to emit. */
-    ArrayList<String> token_queue = new ArrayList<String>();
+    /** Position in the input of the first character of the buffer. */
+    long buf_offset = 0;
+
+    /**
+     *  The characters of the queued tokens. Tokens are queued only while
+     *  the queue is empty, so this is reused from one read to the next.
+     */
+    char[] term_chars = new char[1024];
+
+    /** Number of characters used in @code{term_chars}. */
+    int term_chars_used = 0;
+
+    /**
+     *  The next tokens to emit, as a ring buffer of slices of
+     *  @code{term_chars} together with their start offsets in the input.
+     */
+    int[] queue_start = new int[64];
+    int[] queue_length = new int[64];
+    long[] queue_offset = new long[64];
+
+    /** Index of the first queued token, and the number of queued tokens. */
+    int queue_head = 0;
+    int queue_size = 0;
+
+    /** The current token, as a slice of @code{term_chars}. */
+    int term_start = 0;
+    int term_length = 0;
+    long term_offset = 0;
+
+    /** A reusable view of the current token. */
+    final CharSequence term = new Slice() {
+        char[] array() { return term_chars; }
+        int start() { return term_start; }
+        public int length() { return term_length; }
+    };
+
+    /** A reusable view of the characters of the buffer examined by the patterns. */
+    final BufferSlice candidate = new BufferSlice();
 
     /** True if we've started reading tokens. */
     boolean started_reading = false;
 
     /** The patterns matching non-standard words (e-mail addresses, etc.) */
-    ArrayList<Pattern> patterns = null;
+    TokenPatterns patterns = null;
+
+    /** One reusable matcher for each pattern. */
+    Matcher[] matchers = null;
+
+    /** The folding table of this tokenizer's configuration, see @code{foldingTable}. */
+    final char[] fold;
+
+    /** Class flag of characters that can occur within a token. */
+    static final byte TOKEN_CHAR = 1;
+
+    /** Class flag of punctuation characters, which separate standard tokens. */
+    static final byte PUNCTUATION = 2;
+
+    /** The class flags of every character in the BMP. */
+    static final byte[] CHAR_CLASS = new byte[65536];
+
+    /**
+     *  The folding tables by configuration, indexed by
+     *  @code{(case_folding ? 1 : 0) + (remove_diacritics ? 2 : 0)}.
+     *  They are built when first needed.
+     */
+    private static final char[][] FOLDING_TABLES = new char[4][];
+
+    /** The tokenizers of each thread, by configuration. */
+    private static final ThreadLocal<HashMap<String,Tokenizer>> pool = ThreadLocal.withInitial( HashMap::new );
 
     /** Special characters (with diacritics) can be translated into these characters. */
     public static final char[] SPECIAL_CHAR_MAPPING = {
         'A', 'A', 'A', 'A', 'A', 'A', 'E', 'C', 'E', 'E', 'E', 'E', 'I', 'I', 'I', 'I', 'D', 'N', 'O', 'O', 'O', 'O', 'O', '*', 'O', 'U', 'U', 'U', 'U', 'Y', 'T', 'S', 'a', 'a', 'a', 'a', 'a', 'a', 'e', 'c', 'e', 'e', 'e', 'e', 'i', 'i', 'i', 'i', 'd', 'n', 'o', 'o', 'o', 'o', 'o', '/', 'o', 'u', 'u', 'u', 'u', 'y', 't', 'y', 'A', 'a', 'A', 'a', 'A', 'a', 'C', 'c', 'C', 'c', 'C', 'c', 'C', 'c', 'D', 'd', 'E', 'e', 'E', 'e', 'E', 'e', 'E', 'e', 'E', 'e', 'G', 'g', 'G', 'g', 'G', 'g', 'G', 'g', 'H', 'h', 'H', 'h', 'I', 'i', 'I', 'i', 'I', 'i', 'I', 'i', 'I', 'i', 'J', 'j', 'J', 'j', 'K', 'k', 'k', 'L', 'l', 'L', 'l', 'L', 'l', 'L', 'l', 'L', 'l', 'N', 'n', 'N', 'n', 'N', 'n', 'n', 'N', 'n', 'O', 'o', 'O', 'o', 'O', 'o', 'O', 'o', 'R', 'r', 'R', 'r', 'R', 'r', 'S', 's', 'S', 's', 'S', 's', 'S', 's', 'T', 't', 'T', 't', 'T', 't', 'U', 'u', 'U', 'u', 'U', 'u', 'U', 'u', 'U', 'u', 'U', 'u', 'W', 'w', 'Y', 'y', 'Y', 'Z', 'z', 'Z', 'z', 'Z', 'z' }; 
 
+    static {
+        for ( int c=0; c<CHAR_CLASS.length; c++ ) {
+            if ( Character.isLetter( (char) c ) || ( c >= '!' && c <= '~' )) {
+                CHAR_CLASS[c] |= TOKEN_CHAR;
+            }
+            if (( c >= 32 && c <= 47 ) || ( c >= 58 && c <= 64 ) || ( c >= 91 && c <= 96 ) || ( c >= 123 && c <= 126 )) {
+                CHAR_CLASS[c] |= PUNCTUATION;
+            }
+        }
+    }
+
 
         /* ------------------------------ */
 
@@ -99,50 +175,131 @@ public class Tokenizer {
         this.case_folding = case_folding;
         this.remove_diacritics = remove_diacritics;
         this.remove_punctuation = remove_punctuation;
+        this.fold = foldingTable( case_folding, remove_diacritics );
         if ( pattern_file != null ) {
-            readPatterns( pattern_file );
+            patterns = TokenPatterns.forFile( pattern_file );
+            matchers = patterns.matchers();
         }
     }
 
 
-    /** 
-     *  Returns true if the character is a punctuation character.
+    /**
+     *  Returns a tokenizer for the calling thread, reset to read from
+     *  @code{reader}. The tokenizer is reused by later calls from the same
+     *  thread with the same settings, so it must not be used any more
+     *  once the next one has been asked for.
      */
-    public boolean punctuation( char c ) {
-        if ( c >= 32 && c <= 47 )
-            return true;
-        if ( c >= 58 && c <= 64 )
-            return true;
-        if ( c >= 91 && c <= 96 )
-            return true;
-        return c >= 123 && c <= 126;
+    public static Tokenizer forThread( Reader reader, boolean case_folding, boolean remove_diacritics, boolean remove_punctuation, String pattern_file ) {
+        HashMap<String,Tokenizer> tokenizers = pool.get();
+        String key = case_folding + ";" + remove_diacritics + ";" + remove_punctuation + ";" + pattern_file;
+        Tokenizer tok = tokenizers.get( key );
+        if ( tok == null ) {
+            tok = new Tokenizer( reader, case_folding, remove_diacritics, remove_punctuation, pattern_file );
+            tokenizers.put( key, tok );
+        }
+        else {
+            tok.reset( reader );
+        }
+        return tok;
     }
 
 
     /**
-     *  Read the patterns that match non-standard words  
+     *  Starts tokenizing a new input, keeping the buffers and the
+     *  compiled patterns of this tokenizer.
      */
-    private void readPatterns( String filename ) {
-        patterns = new ArrayList<Pattern>();
-        String line = null;
-        try {
-            BufferedReader in = new BufferedReader( new FileReader( filename ));
-            while (( line = in.readLine()) != null ) {
-                line = line.trim();
-                if ( !line.startsWith( "//" ) && !line.isEmpty()) {
-                    patterns.add( Pattern.compile( line ));
-                }
-            }
+    public void reset( Reader reader ) {
+        this.reader = reader;
+        if ( buf.length > BUFFER_LENGTH ) {
+            // Do not hold on to the buffer grown for an unusually long token
+            buf = new char[INITIAL_BUFFER_LENGTH];
+        }
+        ptr = 0;
+        token_start = -1;
+        buf_offset = 0;
+        started_reading = false;
+        term_chars_used = 0;
+        queue_head = 0;
+        queue_size = 0;
+        term_start = 0;
+        term_length = 0;
+        term_offset = 0;
+    }
+
+
+    /**
+     *  A character sequence that is a window into a char array. Used to
+     *  look at tokens and candidate tokens without copying them into
+     *  Strings.
+     */
+    abstract static class Slice implements CharSequence {
+        abstract char[] array();
+        abstract int start();
+
+        public char charAt( int index ) {
+            return array()[start() + index];
+        }
+
+        public CharSequence subSequence( int start, int end ) {
+            return new String( array(), start() + start, end - start );
         }
-        catch ( IOException e ) {
-            System.err.println( "Warning: IOException reading the regular expressions from file" );
+
+        @Override
+        public String toString() {
+            return new String( array(), start(), length() );
         }
-        catch ( PatternSyntaxException e ) {
-            System.err.println( "ERROR: Malformed regular expression: " + line );
+    }
+
+
+    /** A slice of the buffer. */
+    class BufferSlice extends Slice {
+        int from, to;
+        char[] array() { return buf; }
+        int start() { return from; }
+        public int length() { return to - from; }
+    }
+
+
+    /**
+     *  Returns the table mapping every character in the BMP to its
+     *  normalized counterpart: letters are converted to lower-case and
+     *  have their diacritics removed, depending on the configuration,
+     *  and all other characters are left as they are.
+     */
+    static char[] foldingTable( boolean case_folding, boolean remove_diacritics ) {
+        int config = (case_folding ? 1 : 0) + (remove_diacritics ? 2 : 0);
+        synchronized ( FOLDING_TABLES ) {
+            if ( FOLDING_TABLES[config] == null ) {
+                char[] table = new char[65536];
+                for ( int i=0; i<table.length; i++ ) {
+                    char c = (char) i;
+                    if ( Character.isLetter( c )) {
+                        if ( remove_diacritics && c >= '\u00c0' && c-'\u00c0' < SPECIAL_CHAR_MAPPING.length ) {
+                            // Remove diacritics by mapping to the closest character 
+                            // without diacritics.
+                            c = SPECIAL_CHAR_MAPPING[(int)(c-'\u00c0')];
+                        }
+                        if ( case_folding ) {
+                            c = Character.toLowerCase( c );
+                        }
+                    }
+                    table[i] = c;
+                }
+                FOLDING_TABLES[config] = table;
+            }
+            return FOLDING_TABLES[config];
         }
     }
 
 
+    /** 
+     *  Returns true if the character is a punctuation character.
+     */
+    public static boolean punctuation( char c ) {
+        return ( CHAR_CLASS[c] & PUNCTUATION ) != 0;
+    }
+
+
     /** 
      *  Normalizes letters by converting to lower-case and possibly
      *  removing diacritics. This method is also used for checking
@@ -153,21 +310,8 @@ public class Tokenizer {
      */
     public boolean normalize( char[] buf, int ptr ) {
         char c = buf[ptr];
-        if ( Character.isLetter( c )) {
-            if ( remove_diacritics ) {
-                // Remove diacritics by mapping to the closest character 
-                // without diacritics.
-                if ( c >= '\u00c0' && c <= '\u017e' ) {
-                    buf[ptr] = SPECIAL_CHAR_MAPPING[(int)(c-'\u00c0')];
-                }
-            }
-            if ( case_folding ) {
-                buf[ptr] = Character.toLowerCase( buf[ptr] );
-            }
-            return true;
-        }
-        return c >= '!' && c <= '~';
-        // This is not a character that can occur in a token.
+        buf[ptr] = fold[c];
+        return ( CHAR_CLASS[c] & TOKEN_CHAR ) != 0;
     }
 
 
@@ -181,7 +325,7 @@ public class Tokenizer {
             readTokens();
             started_reading = true;
         }
-        if (token_queue.isEmpty())
+        if ( queue_size == 0 )
             return readTokens();
         else 
             return true;
@@ -193,15 +337,66 @@ public class Tokenizer {
      *  are no more tokens.
      */
     public String nextToken() throws IOException { 
-        if (token_queue.isEmpty()) {
-            if ( readTokens() )
-                return token_queue.remove( 0 );
-            else
-                return null;
-        }
-        else {
-            return token_queue.remove( 0 );
+        return next() ? termString() : null;
+    }
+
+
+    /**
+     *  Advances to the next token without creating a String for it. The
+     *  token can then be accessed through @code{term()}, or through
+     *  @code{termBuffer()}, @code{termStart()} and @code{termLength()}.
+     *  These stay valid until the next call to @code{next()},
+     *  @code{nextToken()} or @code{hasMoreTokens()}.
+     *
+     *  @return @code{true} if there was another token, and @code{false}
+     *  at the end of the input.
+     */
+    public boolean next() throws IOException {
+        if ( queue_size == 0 && !readTokens() ) {
+            return false;
         }
+        term_start = queue_start[queue_head];
+        term_length = queue_length[queue_head];
+        term_offset = queue_offset[queue_head];
+        queue_head = (queue_head + 1) & (queue_start.length - 1);
+        queue_size--;
+        return true;
+    }
+
+
+    /** Returns a reusable view of the current token. */
+    public CharSequence term() {
+        return term;
+    }
+
+    /** Returns the array holding the characters of the current token. */
+    public char[] termBuffer() {
+        return term_chars;
+    }
+
+    /** Returns the index of the current token in @code{termBuffer()}. */
+    public int termStart() {
+        return term_start;
+    }
+
+    /** Returns the length of the current token. */
+    public int termLength() {
+        return term_length;
+    }
+
+    /** Returns the position in the input where the current token starts. */
+    public long startOffset() {
+        return term_offset;
+    }
+
+    /** Returns the position in the input just after the current token. */
+    public long endOffset() {
+        return term_offset + term_length;
+    }
+
+    /** Returns the current token as a String. */
+    public String termString() {
+        return new String( term_chars, term_start, term_length );
     }
 
 
@@ -213,6 +408,8 @@ public class Tokenizer {
             refillBuffer( 0 );
             started_reading = true;
         }
+        // The queue is empty, so the characters of earlier tokens can go.
+        term_chars_used = 0;
         boolean token_added_to_queue = false;
         while ( buf[ptr] != 0 ) {
             if ( token_start < 0 ) {
@@ -234,18 +431,26 @@ public class Tokenizer {
                     ptr++;
                 }
             }
-            if ( ptr == BUFFER_LENGTH ) {
+            if ( ptr == buf.length ) {
                 // The buffer has been read, so refill it
-                if ( token_start >= 0 ) {
+                if ( token_start == 0 ) {
+                    // The token fills the whole buffer, so make room
+                    // for the rest of it.
+                    buf = Arrays.copyOf( buf, 2*buf.length );
+                    refillBuffer( ptr );
+                }
+                else if ( token_start > 0 ) {
                     // We're in the middle of a token. Copy the parts
                     // of the token we have read already into the 
                     // beginning of the buffer.
-                    System.arraycopy( buf, token_start, buf, 0, BUFFER_LENGTH-token_start );
-                    refillBuffer( BUFFER_LENGTH-token_start );
-                    ptr = BUFFER_LENGTH-token_start;
+                    System.arraycopy( buf, token_start, buf, 0, buf.length-token_start );
+                    buf_offset += token_start;
+                    refillBuffer( buf.length-token_start );
+                    ptr = buf.length-token_start;
                     token_start = 0;
                 }
                 else {
+                    buf_offset += buf.length;
                     refillBuffer( 0 );
                     ptr = 0;
                 }
@@ -266,76 +471,138 @@ public class Tokenizer {
         if ( token_start < 0 ) {
             return false;
         }
-        String s = new String( buf, token_start, ptr-token_start );
-        if ( patterns != null ) {
+        if ( matchers != null ) {
             // Now let's see if the string s matches one of the patterns 
             // for non-standard words
-            for ( Pattern p : patterns ) {
-                Matcher m = p.matcher( s );
+            candidate.from = token_start;
+            candidate.to = ptr;
+            // Most patterns cannot match plain words, so skip those
+            boolean plain = !containsPunctuation( token_start, ptr );
+            for ( int i=0; i<matchers.length; i++ ) {
+                if ( plain && patterns.needsPunctuation[i] ) {
+                    continue;
+                }
+                Matcher m = matchers[i];
+                m.reset( candidate );
                 if ( m.find() ) {
                     // The string contains a non-standard word. First check the prefix 
                     // before the matching substring, then add the non-standard word  
                     // to the token queue, then check the remainder of the string.
-                    addStandardTokensToQueue( s.substring(0, m.start() ));
-                    token_queue.add( m.group() );
-                    token_start += m.end();
+                    int start = token_start + m.start(), end = token_start + m.end();
+                    addStandardTokensToQueue( token_start, start );
+                    addToQueue( start, end );
+                    token_start = end;
                     addTokensToQueue();
                     return true;
                 }
             }
         }
         // This string contains only standard words
-        return addStandardTokensToQueue( s );
+        return addStandardTokensToQueue( token_start, ptr );
+    }
+
+
+    /**
+     *  Returns true if there is a punctuation character in @code{buf[from..to)}.
+     */
+    private boolean containsPunctuation( int from, int to ) {
+        for ( int i=from; i<to; i++ ) {
+            if ( punctuation( buf[i] )) {
+                return true;
+            }
+        }
+        return false;
     }
 
 
     /**
      *  Adds standard tokens (i.e. tokens not matching any regular
-     *  expression) to the queue.
+     *  expression) in @code{buf[from..to)} to the queue.
      */
-    private boolean addStandardTokensToQueue( String s ) {
-        // This string s does not match any specific pattern.
+    private boolean addStandardTokensToQueue( int from, int to ) {
+        // This string does not match any specific pattern.
         // Then split it, considering all punctuation symbols
         // to be separators.
         boolean tokens_found = false;
-        StringBuffer smallbuf = new StringBuffer();
-        for ( int i=0; i<s.length(); i++ ) {
-            if ( punctuation( s.charAt( i ))) {
+        int start = from;
+        for ( int i=from; i<to; i++ ) {
+            if ( punctuation( buf[i] )) {
                 // The string before the punctuation sign is a token
                 // unless it is empty
-                String t = smallbuf.toString();
-                if (!t.isEmpty()) {
-                    token_queue.add( t );
-                    smallbuf = new StringBuffer();
+                if ( i > start ) {
+                    addToQueue( start, i );
                     tokens_found = true;
                 }
                 if ( !remove_punctuation ) {
-                    token_queue.add( "" + s.charAt( i ));
+                    addToQueue( i, i+1 );
                     tokens_found = true;
                 }
-            }
-            else {
-                smallbuf.append( s.charAt( i ));
+                start = i+1;
             }
         }
         // The string after the last punctuation sign is a token
         // unless it is empty
-        String t = smallbuf.toString();
-        if (!t.isEmpty()) {
-            token_queue.add( t );
+        if ( to > start ) {
+            addToQueue( start, to );
             tokens_found = true;
         }   
         return tokens_found;
     }
+
+
+    /**
+     *  Copies the characters @code{buf[from..to)} to the end of the
+     *  token queue.
+     */
+    private void addToQueue( int from, int to ) {
+        int length = to - from;
+        if ( term_chars_used + length > term_chars.length ) {
+            term_chars = Arrays.copyOf( term_chars, Math.max( 2*term_chars.length, term_chars_used + length ));
+        }
+        System.arraycopy( buf, from, term_chars, term_chars_used, length );
+        if ( queue_size == queue_start.length ) {
+            growQueue();
+        }
+        int tail = (queue_head + queue_size) & (queue_start.length - 1);
+        queue_start[tail] = term_chars_used;
+        queue_length[tail] = length;
+        queue_offset[tail] = buf_offset + from;
+        queue_size++;
+        term_chars_used += length;
+    }
+
+
+    /** Doubles the capacity of the ring buffer, keeping the queued tokens in order. */
+    private void growQueue() {
+        int capacity = 2 * queue_start.length;
+        int[] start = new int[capacity];
+        int[] length = new int[capacity];
+        long[] offset = new long[capacity];
+        for ( int i=0; i<queue_size; i++ ) {
+            int j = (queue_head + i) & (queue_start.length - 1);
+            start[i] = queue_start[j];
+            length[i] = queue_length[j];
+            offset[i] = queue_offset[j];
+        }
+        queue_start = start;
+        queue_length = length;
+        queue_offset = offset;
+        queue_head = 0;
+    }
     
 
     /**
-     *  Refills the buffer and adds end_of_file "\0" at the appropriate place.
+     *  Refills the buffer from @code{start} on, and adds end_of_file "\0"
+     *  after the last character if the input ends before the buffer is full.
      */
     private void refillBuffer( int start ) throws IOException {
-        int chars_read = reader.read( buf, start, BUFFER_LENGTH-start );
-        if ( chars_read >= 0 && chars_read < BUFFER_LENGTH-start ) {
-            buf[chars_read] = 0;
+        int end = start;
+        int chars_read;
+        while ( end < buf.length && ( chars_read = reader.read( buf, end, buf.length-end )) >= 0 ) {
+            end += chars_read;
+        }
+        if ( end < buf.length ) {
+            buf[end] = 0;
         }
     }
 
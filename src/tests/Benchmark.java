@@ -0,0 +1,157 @@
+/*
+ *  This file is part of the computer assignment for the
+ *  Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.IOException;
+import java.util.Objects;
+
+
+/**
+ *  The harness shared by the benchmarks.
+ *
+ *  Each benchmark is run for a number of warm-up rounds, so that the JIT
+ *  compiler has compiled it, before the measured rounds. The time of the
+ *  fastest measured round is reported. The results of all rounds are
+ *  added to a checksum, so that the JIT cannot remove the work.
+ *
+ *  The strategies that a benchmark compares must compute the same result,
+ *  which the benchmark checks. A benchmark whose strategies disagree
+ *  exits with status 1.
+ */
+abstract class Benchmark {
+
+    /** The number of warm-up and of measured rounds unless -r is given. */
+    final int defaultRounds;
+
+    int warmup;
+    int rounds;
+
+    /** Keeps the results of the benchmarks alive, so that the JIT cannot remove them. */
+    long sink = 0;
+
+    /** The number of results that differed from the result they were checked against. */
+    int mismatches = 0;
+
+
+    Benchmark( int rounds ) {
+        this.defaultRounds = this.warmup = this.rounds = rounds;
+    }
+
+
+    /** One round of a benchmark, which returns its result. */
+    interface Round<T> {
+        T run() throws IOException;
+    }
+
+
+    /** The time of the fastest measured round of a benchmark, and the result of its last round. */
+    static class Measurement<T> {
+        final long nanos;
+        final T result;
+
+        Measurement( long nanos, T result ) {
+            this.nanos = nanos;
+            this.result = result;
+        }
+
+        double micros() {
+            return nanos / 1000.0;
+        }
+    }
+
+
+    /** Runs a benchmark, and returns the time of its fastest measured round and its result. */
+    <T> Measurement<T> measure( Round<T> round ) throws IOException {
+        return measure( null, round );
+    }
+
+
+    /**
+     *  Runs a benchmark, and returns the time of its fastest measured round
+     *  and its result. The setup, if not null, is run before every round,
+     *  and is not timed.
+     */
+    <T> Measurement<T> measure( Runnable setup, Round<T> round ) throws IOException {
+        long best = Long.MAX_VALUE;
+        T result = null;
+        for ( int i=0; i<warmup+rounds; i++ ) {
+            if ( setup != null ) {
+                setup.run();
+            }
+            long start = System.nanoTime();
+            result = round.run();
+            long elapsed = System.nanoTime() - start;
+            sink += Objects.hashCode( result );
+            if ( i >= warmup ) {
+                best = Math.min( best, elapsed );
+            }
+        }
+        return new Measurement<T>( best, result );
+    }
+
+
+    /** Checks that a strategy computed the expected result, and prints a line if it did not. */
+    void check( String name, long expected, long actual ) {
+        if ( expected != actual ) {
+            System.out.println( "MISMATCH " + name + ": " + actual + ", expected " + expected );
+            mismatches++;
+        }
+    }
+
+
+    /** Runs all benchmarks. */
+    abstract void run() throws IOException;
+
+
+    /**
+     *  Reads the parameter of the benchmark at @code{args[i]}, and returns
+     *  the number of arguments it takes, or 0 if it is not one.
+     */
+    abstract int parseArg( String[] args, int i );
+
+
+    /** Prints usage information for the parameters of the benchmark, one line each. */
+    abstract void printParameters();
+
+
+    /** Prints usage information. */
+    void printHelpMessage() {
+        System.err.println( "The following parameters are available: " );
+        printParameters();
+        System.err.println( "  -r <number> : number of warm-up and of measured rounds (default " + defaultRounds + ")" );
+    }
+
+
+    /**
+     *  Reads the parameters and runs all benchmarks. Exits with status 1 if
+     *  a strategy computed another result than the one it was checked
+     *  against.
+     */
+    void start( String[] args ) throws IOException {
+        int i=0;
+        while ( i<args.length ) {
+            int used;
+            if ( args[i].equals( "-r" ) && i+1<args.length ) {
+                warmup = rounds = Integer.parseInt( args[i+1] );
+                used = 2;
+            } else {
+                used = parseArg( args, i );
+            }
+            if ( used == 0 ) {
+                System.err.println( "Unrecognized parameter: " + args[i] );
+                printHelpMessage();
+                return;
+            }
+            i += used;
+        }
+        run();
+        System.out.println( "(checksum " + sink + ")" );
+        if ( mismatches > 0 ) {
+            System.out.println( mismatches + " result(s) differed." );
+            System.exit( 1 );
+        }
+    }
+}
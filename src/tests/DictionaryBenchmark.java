@@ -0,0 +1,190 @@
+/*
+ *  This file is part of the computer assignment for the
+ *  Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+
+
+/**
+ *  Measures term lookups in the dictionary of a persistent index, with the
+ *  hash table with linear probing that the index is written with, with
+ *  the table of one slot per term addressed by a minimal perfect hash
+ *  function that buildPerfectHash() replaces it with, and in the sorted
+ *  terms file.
+ *
+ *  An index of random terms, each in one document, is written to a
+ *  temporary directory and copied, and the dictionary of the copy is
+ *  given a perfect hash function. Both are then opened, and every term,
+ *  and as many terms that are not in the index, is looked up, in random
+ *  order. The size of the dictionary files is reported per term. Last,
+ *  the terms with each prefix of two letters are read from the terms file.
+ *
+ *  Every dictionary must find all the terms of the index and none of the
+ *  others, and the prefixes must cover all the terms. The time of the
+ *  fastest round is reported (see @code{Benchmark}).
+ */
+public class DictionaryBenchmark extends Benchmark {
+
+    int terms = 200000;
+
+
+    DictionaryBenchmark() {
+        super( 10 );
+    }
+
+
+    /** A way to look up a term. */
+    interface Lookup {
+        boolean contains( String word );
+    }
+
+
+    /** Returns the given number of distinct random words of 3 to 12 letters, which are not in the set. */
+    static ArrayList<String> randomWords( int n, HashSet<String> used, Random random ) {
+        ArrayList<String> words = new ArrayList<String>();
+        StringBuilder word = new StringBuilder();
+        while ( words.size() < n ) {
+            word.setLength( 0 );
+            int length = 3 + random.nextInt( 10 );
+            for ( int i=0; i<length; i++ ) {
+                word.append( (char) ('a' + random.nextInt( 26 )));
+            }
+            if ( used.add( word.toString() )) {
+                words.add( word.toString() );
+            }
+        }
+        return words;
+    }
+
+
+    /** Looks up every word, and returns the number that were found. */
+    static long lookup( Lookup lookup, ArrayList<String> words ) {
+        long found = 0;
+        for ( String word : words ) {
+            if ( lookup.contains( word )) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+
+    /** Reads the terms with every prefix, and returns the number of terms read. */
+    static long scan( SortedTermDictionary terms, ArrayList<String> prefixes ) {
+        long found = 0;
+        for ( String prefix : prefixes ) {
+            SortedTermDictionary.Cursor cursor = terms.prefix( prefix );
+            while ( cursor.next() != null ) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+
+    /**
+     *  Looks up the words repeatedly, checks the number found, and returns
+     *  the time of the fastest measured round, in nanoseconds per word.
+     */
+    double measure( String name, Lookup lookup, ArrayList<String> words, long expected ) throws IOException {
+        Measurement<Long> m = measure( () -> lookup( lookup, words ));
+        check( name, expected, m.result );
+        return (double) m.nanos / words.size();
+    }
+
+
+    /** Runs all benchmarks. */
+    void run() throws IOException {
+        Random random = new Random( 2477 );
+        HashSet<String> used = new HashSet<String>();
+        ArrayList<String> present = randomWords( terms, used, random );
+        ArrayList<String> absent = randomWords( terms, used, random );
+
+        File tableDir = Files.createTempDirectory( "dictionary" ).toFile();
+        File perfectDir = Files.createTempDirectory( "dictionary" ).toFile();
+        PersistentHashedIndex writer = new PersistentHashedIndex( tableDir.getPath(), Long.MAX_VALUE );
+        for ( String word : present ) {
+            writer.insert( word, random.nextInt( 1000000 ), 0 );
+        }
+        writer.writeIndex();
+        for ( File file : tableDir.listFiles() ) {
+            Files.copy( file.toPath(), new File( perfectDir, file.getName() ).toPath() );
+        }
+        long start = System.nanoTime();
+        PersistentHashedIndex.buildPerfectHash( perfectDir.getPath() );
+        double buildTime = (System.nanoTime() - start) / 1e6;
+
+        Collections.shuffle( present, random );
+        PersistentHashedIndex table = new PersistentHashedIndex( tableDir.getPath(), Long.MAX_VALUE );
+        PersistentHashedIndex perfect = new PersistentHashedIndex( perfectDir.getPath(), Long.MAX_VALUE );
+        System.out.println( "Looking up " + terms + " terms that are in the dictionary and " + terms + " that are not ("
+                + warmup + " warm-up and " + rounds + " measured rounds)" );
+        System.out.println( String.format( "%16s %14s %14s %14s", "dictionary", "bytes/term", "ns/present", "ns/absent" ));
+        Lookup[] lookups = {
+            word -> table.findEntry( word ) != null,
+            word -> perfect.findEntry( word ) != null,
+            word -> table.sortedTerms.lookup( word ) != null
+        };
+        File[] files = {
+            new File( tableDir, PersistentHashedIndex.DICTIONARY_FNAME ),
+            new File( perfectDir, PersistentHashedIndex.DICTIONARY_FNAME ),
+            new File( tableDir, PersistentHashedIndex.TERMS_FNAME )
+        };
+        String[] names = { "hash table", "perfect hash", "sorted terms" };
+        for ( int i=0; i<lookups.length; i++ ) {
+            double presentTime = measure( names[i] + ", present", lookups[i], present, present.size() );
+            double absentTime = measure( names[i] + ", absent", lookups[i], absent, 0 );
+            System.out.println( String.format( "%16s %14.1f %14.1f %14.1f",
+                    names[i], (double) files[i].length() / terms, presentTime, absentTime ));
+        }
+        System.out.println( String.format( "The perfect hash function was built in %.1f ms.", buildTime ));
+
+        ArrayList<String> prefixes = new ArrayList<String>();
+        for ( char a='a'; a<='z'; a++ ) {
+            for ( char b='a'; b<='z'; b++ ) {
+                prefixes.add( "" + a + b );
+            }
+        }
+        // Every term has at least three letters, so it has one of the prefixes.
+        Measurement<Long> scan = measure( () -> scan( table.sortedTerms, prefixes ));
+        check( "prefixes of two letters", present.size(), scan.result );
+        System.out.println( String.format( "Reading the terms with each of %d prefixes of two letters: %.1f terms in %.1f microseconds per prefix.",
+                prefixes.size(), (double) scan.result / prefixes.size(), scan.micros() / prefixes.size() ));
+
+        for ( File dir : new File[] { tableDir, perfectDir } ) {
+            for ( File file : dir.listFiles() ) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+
+    int parseArg( String[] args, int i ) {
+        if ( args[i].equals( "-n" ) && i+1<args.length ) {
+            terms = Integer.parseInt( args[i+1] );
+            return 2;
+        }
+        return 0;
+    }
+
+
+    void printParameters() {
+        System.err.println( "  -n <number> : number of terms (default 200000)" );
+    }
+
+
+    /** Main */
+    public static void main( String[] args ) throws IOException {
+        new DictionaryBenchmark().start( args );
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ *  This file is part of the computer assignment for the
+ *  Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+
+/**
+ *  Measures the intersection of a rare and a common term, for several
+ *  document frequencies of the rare term. The common term occurs in every
+ *  document of a collection of a million documents.
+ *
+ *  In memory, a cursor that gallops through the common list is compared
+ *  with the original intersection, which stepped through both lists one
+ *  posting at a time. For the compressed format, decoding the whole common
+ *  list is compared with a cursor over the encoded list, which the rare
+ *  term advances through the skip table. Last, the documents of the rare
+ *  term are looked up in a bitmap of the common term.
+ *
+ *  Then a query of the common term, a term in a tenth of the documents and
+ *  the rare term is evaluated in the order in which it was typed, by
+ *  pairwise intersections, and rarest term first in a single pass over
+ *  cursors, as the Searcher does.
+ *
+ *  Finally, two terms in a large fraction of the documents are
+ *  intersected through cursors, and as bitmaps, both with and without
+ *  turning the result into a postings list.
+ *
+ *  All ways of intersecting the same terms must find the same documents.
+ *  The time of the fastest round is reported (see @code{Benchmark}).
+ */
+public class PostingsBenchmark extends Benchmark {
+
+    int documents = 1000000;
+    int[] rareSizes = { 10, 100, 1000, 10000, 100000, 1000000 };
+
+
+    PostingsBenchmark() {
+        super( 20 );
+    }
+
+
+    /** The original intersection, without skip pointers. */
+    static PostingsList referenceIntersect( PostingsList p1, PostingsList p2 ) {
+        int i = 0, j = 0;
+        PostingsList result = null;
+        while ( i < p1.size() && j < p2.size() ) {
+            int docID1 = p1.get( i ).docID;
+            int docID2 = p2.get( j ).docID;
+            if ( docID1 == docID2 ) {
+                if ( result == null )
+                    result = new PostingsList( docID1, 0 );
+                else
+                    result.insert( docID1, 0 );
+                i++; j++;
+            }
+            else if ( docID1 < docID2 ) { i++; }
+            else { j++; }
+        }
+        return result;
+    }
+
+
+    /** Intersects a list with a cursor, which is advanced to each docID of the list. */
+    static PostingsList cursorIntersect( PostingsList p1, PostingsCursor p2 ) {
+        PostingsList result = null;
+        for ( int i=0; i<p1.size(); i++ ) {
+            int docID = p1.get( i ).docID;
+            int doc = p2.advance( docID );
+            if ( doc == PostingsCursor.NO_MORE_DOCS ) {
+                break;
+            }
+            if ( doc == docID ) {
+                if ( result == null )
+                    result = new PostingsList();
+                result.append( new PostingsEntry( docID, 0 ));
+            }
+        }
+        return result;
+    }
+
+
+    /** Intersects the cursors, which are sorted rarest first, in one pass. */
+    static PostingsList intersectRarestFirst( PostingsCursor... cursors ) {
+        PostingsList result = null;
+        for ( int docID=Searcher.nextMatch( cursors, 0 ); docID!=PostingsCursor.NO_MORE_DOCS;
+              docID=Searcher.nextMatch( cursors, docID+1 )) {
+            if ( result == null )
+                result = new PostingsList();
+            result.append( new PostingsEntry( docID, 0 ));
+        }
+        return result;
+    }
+
+
+    /** Intersects a list with a bitmap, which is probed for each docID of the list. */
+    static PostingsList probeIntersect( PostingsList p1, DocBitmap p2 ) {
+        PostingsList result = null;
+        for ( int i=0; i<p1.size(); i++ ) {
+            int docID = p1.get( i ).docID;
+            if ( p2.contains( docID )) {
+                if ( result == null )
+                    result = new PostingsList();
+                result.append( new PostingsEntry( docID, 0 ));
+            }
+        }
+        return result;
+    }
+
+
+    /** Returns the docIDs of a bitmap as a list. */
+    static PostingsList toList( DocBitmap bitmap ) {
+        PostingsList result = null;
+        for ( int docID=bitmap.next( 0 ); docID!=PostingsCursor.NO_MORE_DOCS; docID=bitmap.next( docID+1 )) {
+            if ( result == null )
+                result = new PostingsList();
+            result.append( new PostingsEntry( docID, 0 ));
+        }
+        return result;
+    }
+
+
+    /** Returns the size of a result, which may be null. */
+    static long size( PostingsList result ) {
+        return result == null ? 0 : result.size();
+    }
+
+
+    /** Returns a hash of the docIDs of a result, which may be null, to compare results by. */
+    static long digest( PostingsList result ) {
+        long digest = size( result );
+        for ( int i=0; i<size( result ); i++ ) {
+            digest = 31 * digest + result.get( i ).docID;
+        }
+        return digest;
+    }
+
+
+    /** Checks that the intersections found the same documents as the first. */
+    @SafeVarargs
+    final void checkSame( String name, String[] strategies, Measurement<PostingsList>... results ) {
+        for ( int i=1; i<results.length; i++ ) {
+            check( name + ", " + strategies[i], digest( results[0].result ), digest( results[i].result ));
+        }
+    }
+
+
+    /** Returns a list of the given number of random documents, each with one position. */
+    PostingsList randomList( int size, Random random ) {
+        boolean[] chosen = new boolean[documents];
+        int n = 0;
+        while ( n < size ) {
+            int docID = random.nextInt( documents );
+            if ( !chosen[docID] ) {
+                chosen[docID] = true;
+                n++;
+            }
+        }
+        PostingsList list = new PostingsList();
+        for ( int docID=0; docID<documents; docID++ ) {
+            if ( chosen[docID] ) {
+                list.append( new PostingsEntry( docID, new int[] { 0 }, 1 ));
+            }
+        }
+        return list;
+    }
+
+
+    /** Runs all benchmarks. */
+    void run() throws IOException {
+        Random random = new Random( 2477 );
+        PostingsList common = randomList( documents, random );
+        ByteBuffer encoded = PostingsCodec.encode( common );
+        DocBitmap commonBitmap = DocBitmap.of( common.cursor() );
+        System.out.println( "Intersecting with a term in all of " + documents + " documents ("
+                + warmup + " warm-up and " + rounds + " measured rounds, times in microseconds)" );
+        System.out.println( String.format( "%10s %12s %12s %14s %14s %14s",
+                "rare df", "linear", "galloping", "decode all", "cursor", "bitmap probe" ));
+        for ( int size : rareSizes ) {
+            if ( size > documents ) {
+                continue;
+            }
+            PostingsList rare = randomList( size, random );
+            Measurement<PostingsList> linear = measure( () -> referenceIntersect( rare, common ));
+            Measurement<PostingsList> galloping = measure( () -> cursorIntersect( rare, common.cursor() ));
+            Measurement<PostingsList> decodeAll = measure( () -> cursorIntersect( rare, PostingsCodec.decode( encoded.duplicate() ).cursor() ));
+            Measurement<PostingsList> cursor = measure( () -> cursorIntersect( rare, PostingsCodec.cursor( encoded.duplicate() )));
+            Measurement<PostingsList> probe = measure( () -> probeIntersect( rare, commonBitmap ));
+            System.out.println( String.format( "%10d %12.1f %12.1f %14.1f %14.1f %14.1f", size, linear.micros(),
+                    galloping.micros(), decodeAll.micros(), cursor.micros(), probe.micros() ));
+            checkSame( "rare df " + size, new String[] { "linear", "galloping", "decode all", "cursor", "bitmap probe" },
+                    linear, galloping, decodeAll, cursor, probe );
+        }
+
+        PostingsList medium = randomList( documents / 10, random );
+        System.out.println();
+        System.out.println( "Query of three terms with dfs " + documents + ", " + documents / 10 + " and the rare df" );
+        System.out.println( String.format( "%10s %12s %12s", "rare df", "pairwise", "rarest first" ));
+        for ( int size : rareSizes ) {
+            if ( size > documents / 10 ) {
+                continue;
+            }
+            PostingsList rare = randomList( size, random );
+            Measurement<PostingsList> pairwise = measure( () -> {
+                PostingsList result = cursorIntersect( common, medium.cursor() );
+                return result == null ? null : cursorIntersect( result, rare.cursor() );
+            });
+            Measurement<PostingsList> rarestFirst = measure( () -> intersectRarestFirst( rare.cursor(), medium.cursor(), common.cursor() ));
+            System.out.println( String.format( "%10d %12.1f %12.1f", size, pairwise.micros(), rarestFirst.micros() ));
+            checkSame( "three terms, rare df " + size, new String[] { "pairwise", "rarest first" }, pairwise, rarestFirst );
+        }
+
+        System.out.println();
+        System.out.println( "Query of two terms with the given dfs" );
+        System.out.println( String.format( "%10s %10s %12s %12s %12s", "df 1", "df 2", "cursors", "bitmaps", "and only" ));
+        for ( int fraction : new int[] { 2, 4, 16 } ) {
+            PostingsList first = randomList( documents / fraction, random );
+            PostingsList second = randomList( documents / fraction / 2, random );
+            DocBitmap firstBitmap = DocBitmap.of( first.cursor() );
+            DocBitmap secondBitmap = DocBitmap.of( second.cursor() );
+            Measurement<PostingsList> cursors = measure( () -> intersectRarestFirst( second.cursor(), first.cursor() ));
+            Measurement<PostingsList> bitmaps = measure( () -> toList( secondBitmap.and( firstBitmap )));
+            Measurement<Integer> and = measure( () -> secondBitmap.and( firstBitmap ).cardinality() );
+            System.out.println( String.format( "%10d %10d %12.1f %12.1f %12.1f", first.size(), second.size(),
+                    cursors.micros(), bitmaps.micros(), and.micros() ));
+            String name = "two terms, dfs " + first.size() + " and " + second.size();
+            checkSame( name, new String[] { "cursors", "bitmaps" }, cursors, bitmaps );
+            check( name + ", and only", size( cursors.result ), and.result );
+        }
+    }
+
+
+    int parseArg( String[] args, int i ) {
+        if ( args[i].equals( "-n" ) && i+1<args.length ) {
+            documents = Integer.parseInt( args[i+1] );
+            return 2;
+        }
+        return 0;
+    }
+
+
+    void printParameters() {
+        System.err.println( "  -n <number> : number of documents (default 1000000)" );
+    }
+
+
+    /** Main */
+    public static void main( String[] args ) throws IOException {
+        new PostingsBenchmark().start( args );
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ *  This file is part of the computer assignment for the
+ *  Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+
+/**
+ *  Runs queries against a small index built in memory, and against the
+ *  same index written to disk, and compares the documents found with the
+ *  documents expected. Prints one line per check, and exits with status 1
+ *  if any check failed.
+ */
+public class SearchTest {
+
+    /** The documents of the test index, as space-separated terms. */
+    static final String[] DOCUMENTS = {
+        "apple banana cherry",
+        "banana cherry",
+        "cherry date",
+        "apple date",
+        "elderberry",
+        "banana apple"
+    };
+
+    int failures = 0;
+
+
+    /**
+     *  A HITS ranker that reads no link files, and ranks the base set it is
+     *  given as it is, so that the documents found by the searcher are seen.
+     */
+    static class BaseSetRanker extends HITSRanker {
+        BaseSetRanker( Index index ) {
+            super( null, null, index );
+        }
+
+        void readDocs( String linksFilename, String titlesFilename ) {
+        }
+
+        PostingsList rank( PostingsList post ) {
+            PostingsList result = new PostingsList();
+            for ( PostingsEntry entry : post.getList() ) {
+                result.append( new PostingsEntry( entry.docID, 1.0 ));
+            }
+            return result;
+        }
+    }
+
+
+    /** Returns true if a document contains a term, or a term with the prefix of a prefix term. */
+    static boolean contains( String document, String term ) {
+        for ( String word : document.split( " " )) {
+            if ( Searcher.isPrefixTerm( term ) ? word.startsWith( term.substring( 0, term.length() - 1 )) : word.equals( term )) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /** Returns the docIDs of the documents that contain any, or all, of the terms. */
+    static int[] expected( String query, boolean all ) {
+        TreeSet<Integer> docIDs = new TreeSet<Integer>();
+        for ( int docID=0; docID<DOCUMENTS.length; docID++ ) {
+            int found = 0;
+            String[] terms = query.split( " " );
+            for ( String term : terms ) {
+                if ( contains( DOCUMENTS[docID], term )) {
+                    found++;
+                }
+            }
+            if ( all ? found == terms.length : found > 0 ) {
+                docIDs.add( docID );
+            }
+        }
+        return docIDs.stream().mapToInt( Integer::intValue ).toArray();
+    }
+
+
+    /** Returns the docIDs of a result in docID order. */
+    static int[] docIDs( PostingsList result ) {
+        if ( result == null ) {
+            return new int[0];
+        }
+        int[] docIDs = new int[result.size()];
+        for ( int i=0; i<docIDs.length; i++ ) {
+            docIDs[i] = result.get( i ).docID;
+        }
+        Arrays.sort( docIDs );
+        return docIDs;
+    }
+
+
+    /** Runs a query and compares its documents with the expected ones. */
+    void check( String indexName, Searcher searcher, String query, QueryType queryType, RankingType rankingType, int[] expected ) {
+        String name = indexName + " " + queryType + " " + rankingType + " \"" + query + "\"";
+        try {
+            int[] found = docIDs( searcher.search( new Query( query ), queryType, rankingType, NormalizationType.NUMBER_OF_WORDS ));
+            if ( Arrays.equals( found, expected )) {
+                System.out.println( "OK   " + name );
+            } else {
+                System.out.println( "FAIL " + name + ": found " + Arrays.toString( found ) + ", expected " + Arrays.toString( expected ));
+                failures++;
+            }
+        } catch ( RuntimeException e ) {
+            System.out.println( "FAIL " + name + ": " + e );
+            failures++;
+        }
+    }
+
+
+    /** Runs the queries against an index that holds the documents. */
+    void run( String indexName, Index index, String[] queries ) {
+        Searcher searcher = new Searcher( index, new KGramIndex( 2 ), new BaseSetRanker( index ));
+        for ( String query : queries ) {
+            check( indexName, searcher, query, QueryType.INTERSECTION_QUERY, RankingType.TF_IDF, expected( query, true ));
+            check( indexName, searcher, query, QueryType.RANKED_QUERY, RankingType.TF_IDF, expected( query, false ));
+            check( indexName, searcher, query, QueryType.RANKED_QUERY, RankingType.HITS_RANK, expected( query, false ));
+        }
+    }
+
+
+    /**
+     *  Runs all checks, on an index in memory and on a persistent index.
+     *  Only the persistent index can list the terms with a prefix, so the
+     *  prefix queries are only run against it.
+     */
+    void run() throws IOException {
+        Index hashed = new HashedIndex();
+        File dir = Files.createTempDirectory( "searchtest" ).toFile();
+        PersistentHashedIndex persistent = new PersistentHashedIndex( dir.getPath(), Long.MAX_VALUE, false );
+        for ( int docID=0; docID<DOCUMENTS.length; docID++ ) {
+            String[] terms = DOCUMENTS[docID].split( " " );
+            for ( int offset=0; offset<terms.length; offset++ ) {
+                hashed.insert( terms[offset], docID, offset );
+                persistent.insert( terms[offset], docID, offset );
+            }
+            Index.docNames.put( docID, "doc" + docID );
+            Index.docLengths.put( docID, terms.length );
+        }
+        persistent.writeIndex();
+
+        String[] queries = { "apple", "apple banana", "cherry date apple", "banana fig", "fig" };
+        String[] prefixQueries = { "ba*", "c* apple", "f*", "a* ch*" };
+        run( "hashed", hashed, queries );
+        run( "persistent", persistent, queries );
+        run( "persistent", persistent, prefixQueries );
+
+        Searcher searcher = new Searcher( persistent, new KGramIndex( 2 ), new BaseSetRanker( persistent ));
+        check( "persistent", searcher, "banana c*", QueryType.PHRASE_QUERY, RankingType.TF_IDF, new int[] { 0, 1 } );
+        check( "persistent", searcher, "ba* a*", QueryType.PHRASE_QUERY, RankingType.TF_IDF, new int[] { 5 } );
+
+        for ( File file : dir.listFiles() ) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+
+    /** Main */
+    public static void main( String[] args ) throws IOException {
+        SearchTest t = new SearchTest();
+        t.run();
+        System.out.println( t.failures == 0 ? "All checks passed." : t.failures + " check(s) failed." );
+        System.exit( t.failures == 0 ? 0 : 1 );
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ *  This file is part of the computer assignment for the
+ *  Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+
+
+/**
+ *  Compares the table-driven character classification of the Tokenizer
+ *  with the original one, which made a chain of range checks and calls
+ *  to Character.isLetter and Character.toLowerCase for every character.
+ *  Both must classify the same characters. The time per character of the
+ *  fastest round is reported (see @code{Benchmark}).
+ */
+public class TokenBenchmark extends Benchmark {
+
+    boolean case_folding = false;
+    boolean remove_diacritics = false;
+    final static String PATTERN_DIR = "src/main/resources/";
+    final static String TEST_RES_DIR = "src/tests/resources/";
+    String patterns_file = null;
+    String filename = TEST_RES_DIR + "token_test.txt";
+
+    /** The text of the test file. */
+    char[] text;
+
+
+    TokenBenchmark() {
+        super( 200 );
+    }
+
+
+    /** A benchmark over the whole test file. */
+    interface TextRound {
+        long run( char[] buf ) throws IOException;
+    }
+
+
+    /** The original normalization. */
+    boolean referenceNormalize( char[] buf, int ptr ) {
+        char c = buf[ptr];
+        if ( Character.isLetter( c )) {
+            if ( remove_diacritics ) {
+                if ( c >= 'À' && c-'À' < Tokenizer.SPECIAL_CHAR_MAPPING.length ) {
+                    buf[ptr] = Tokenizer.SPECIAL_CHAR_MAPPING[c-'À'];
+                }
+            }
+            if ( case_folding ) {
+                buf[ptr] = Character.toLowerCase( buf[ptr] );
+            }
+            return true;
+        }
+        return c >= '!' && c <= '~';
+    }
+
+
+    /** The original punctuation test. */
+    static boolean referencePunctuation( char c ) {
+        if ( c >= 32 && c <= 47 )
+            return true;
+        if ( c >= 58 && c <= 64 )
+            return true;
+        if ( c >= 91 && c <= 96 )
+            return true;
+        return c >= 123 && c <= 126;
+    }
+
+
+    /**
+     *  Runs a benchmark on a fresh copy of the text in every round, prints
+     *  the time per character of the fastest measured round, and returns
+     *  the result of the benchmark.
+     */
+    long measure( String name, TextRound round ) throws IOException {
+        char[] buf = new char[text.length];
+        Measurement<Long> m = measure( () -> System.arraycopy( text, 0, buf, 0, text.length ), () -> round.run( buf ));
+        System.out.println( String.format( "%-28s %8.2f ns/char %10.1f Mchars/s",
+                name, (double) m.nanos / text.length, text.length * 1000.0 / m.nanos ));
+        return m.result;
+    }
+
+
+    /** Runs all benchmarks. */
+    void run() throws IOException {
+        text = new String( Files.readAllBytes( Paths.get( filename )), StandardCharsets.UTF_8 ).toCharArray();
+        System.out.println( "Benchmarking " + filename + " (" + text.length + " chars, " + warmup + " warm-up and " + rounds + " measured rounds)" );
+        Tokenizer tok = new Tokenizer( new StringReader( "" ), case_folding, remove_diacritics, true, null );
+
+        long reference = measure( "normalize, reference", buf -> {
+            long n = 0;
+            for ( int i=0; i<buf.length; i++ ) {
+                if ( referenceNormalize( buf, i )) n++;
+                if ( referencePunctuation( buf[i] )) n++;
+            }
+            return n;
+        });
+        long table = measure( "normalize, table-driven", buf -> {
+            long n = 0;
+            for ( int i=0; i<buf.length; i++ ) {
+                if ( tok.normalize( buf, i )) n++;
+                if ( Tokenizer.punctuation( buf[i] )) n++;
+            }
+            return n;
+        });
+        check( "normalize, table-driven", reference, table );
+        measure( "tokenize, whole file", buf -> {
+            long n = 0;
+            Tokenizer t = Tokenizer.forThread( new CharArrayReader( buf ), case_folding, remove_diacritics, true, patterns_file );
+            while ( t.next() ) {
+                n += t.termLength();
+            }
+            return n;
+        });
+    }
+
+
+    int parseArg( String[] args, int i ) {
+        if ( args[i].equals( "-cf" )) {
+            case_folding = true;
+            return 1;
+        } else if ( args[i].equals( "-rd" )) {
+            remove_diacritics = true;
+            return 1;
+        } else if ( args[i].equals( "-f" ) && i+1<args.length ) {
+            filename = TEST_RES_DIR + args[i+1];
+            return 2;
+        } else if ( args[i].equals( "-p" ) && i+1<args.length ) {
+            patterns_file = PATTERN_DIR + args[i+1];
+            return 2;
+        }
+        return 0;
+    }
+
+
+    void printParameters() {
+        System.err.println( "  -cf : case folding (optional)" );
+        System.err.println( "  -rd : removes diacritics  (optional)" );
+        System.err.println( "  -p <filename> : name of the file containing regular expressions for non-standard words (optional)" );
+        System.err.println( "  -f <filename> : name of the file to be tokenized (default token_test.txt)" );
+    }
+
+
+    /** Main */
+    public static void main( String[] args ) throws IOException {
+        new TokenBenchmark().start( args );
+    }
+}